@@ -0,0 +1,480 @@
+package org.example.client;
+
+import org.example.common.Compression;
+import org.example.common.Message;
+import org.example.common.Message.Type;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clase BulkTransfer
+ * Subida o descarga de muchos adjuntos de una vez (por ejemplo, para migrar los archivos
+ * de otro sistema). Los archivos se reparten entre varias conexiones con el servidor que
+ * trabajan en paralelo, cada una con su propio hilo; cada conexión se abre una vez y se
+ * reutiliza para todos los archivos que le tocan.
+ *
+ * Mientras dura la transferencia se muestra el progreso cada segundo y al final un
+ * resumen con los archivos transferidos, los fallidos y la velocidad media.
+ */
+class BulkTransfer {
+
+    //número de conexiones en paralelo (-Dtareas.conexionesMasivas); más conexiones solo ayudan
+    //mientras no se sature la red o el disco del servidor
+    static final int CONEXIONES = Integer.getInteger("tareas.conexionesMasivas", 4);
+
+    //tamaño de los bloques: mayor que en las transferencias interactivas para enviar menos mensajes
+    private static final int TAMAÑO_BLOQUE = 64 * 1024;
+    private static final long PERIODO_PROGRESO_MS = 1000;
+    //errores que se muestran en el resumen (el resto solo se cuentan)
+    private static final int MAX_ERRORES_MOSTRADOS = 20;
+    //ids que se aceptan en una descarga por rangos, para que un rango mal escrito
+    //(1-2000000000) no llene la memoria con trabajos antes de empezar
+    private static final int MAX_IDS = 100_000;
+
+    //archivo de una tarea que hay que subir, o ruta en la que guardar su adjunto al descargarlo
+    //(si la ruta es un directorio, el archivo se guarda dentro con el id de la tarea y su extensión)
+    record Trabajo(int taskId, File archivo) {}
+
+    private final String host;
+    private final int puerto;
+    private final int conexiones;
+    //prefijo de los traceId de las peticiones de esta transferencia
+    private final String traza;
+
+    //contadores de la transferencia en curso
+    private final AtomicInteger terminados = new AtomicInteger();
+    private final AtomicInteger omitidos = new AtomicInteger();
+    private final AtomicInteger fallidos = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong peticiones = new AtomicLong();
+    private final List<String> errores = new ArrayList<>();
+    //bytes ahorrados y CPU gastada al comprimir las subidas (compartido por todas las conexiones)
+    private final Compression.Contador compresion = new Compression.Contador();
+
+    BulkTransfer(String host, int puerto, int conexiones, String traza) {
+        this.host = host;
+        this.puerto = puerto;
+        this.conexiones = Math.max(1, conexiones);
+        this.traza = traza;
+    }
+
+    /* =========================
+       Lectura de los trabajos
+       ========================= */
+
+    /**
+     * Archivos de un directorio cuyo nombre empieza por el id de su tarea
+     * (por ejemplo "125.pdf" o "125-factura.pdf"). Los demás se ignoran.
+     */
+    static List<Trabajo> desdeDirectorio(File directorio) {
+        List<Trabajo> trabajos = new ArrayList<>();
+        File[] archivos = directorio.listFiles(File::isFile);
+        if (archivos == null) {
+            return trabajos;
+        }
+        for (File archivo : archivos) {
+            String nombre = archivo.getName();
+            int digitos = 0;
+            while (digitos < nombre.length() && Character.isDigit(nombre.charAt(digitos))) {
+                digitos++;
+            }
+            if (digitos > 0 && digitos <= 9) {
+                trabajos.add(new Trabajo(Integer.parseInt(nombre.substring(0, digitos)), archivo));
+            }
+        }
+        return trabajos;
+    }
+
+    /**
+     * Manifiesto con una línea "id ruta" por archivo. Las rutas relativas se toman
+     * respecto al directorio del manifiesto; las líneas vacías o que empiezan por # se ignoran.
+     */
+    static List<Trabajo> desdeManifiesto(File manifiesto) throws IOException {
+        List<Trabajo> trabajos = new ArrayList<>();
+        int numero = 0;
+        for (String linea : Files.readAllLines(manifiesto.toPath())) {
+            numero++;
+            linea = linea.trim();
+            if (linea.isEmpty() || linea.startsWith("#")) {
+                continue;
+            }
+            String[] partes = linea.split("\\s+", 2);
+            try {
+                if (partes.length < 2) {
+                    throw new NumberFormatException();
+                }
+                File archivo = new File(partes[1]);
+                if (!archivo.isAbsolute()) {
+                    archivo = new File(manifiesto.getAbsoluteFile().getParentFile(), partes[1]);
+                }
+                trabajos.add(new Trabajo(Integer.parseInt(partes[0]), archivo));
+            } catch (NumberFormatException e) {
+                throw new IOException("Línea " + numero + " del manifiesto no válida (se espera 'id ruta'): " + linea);
+            }
+        }
+        return trabajos;
+    }
+
+    /**
+     * Descarga de los adjuntos de varias tareas en un directorio, con ids como "1-100,205".
+     * Lanza IllegalArgumentException si un rango está al revés (10-1) o si en total
+     * hay más de MAX_IDS ids.
+     */
+    static List<Trabajo> desdeIds(String ids, File directorio) {
+        List<Trabajo> trabajos = new ArrayList<>();
+        for (String parte : ids.split(",")) {
+            parte = parte.trim();
+            if (parte.isEmpty()) {
+                continue;
+            }
+            int guion = parte.indexOf('-');
+            int desde = Integer.parseInt(guion < 0 ? parte : parte.substring(0, guion).trim());
+            int hasta = guion < 0 ? desde : Integer.parseInt(parte.substring(guion + 1).trim());
+            if (hasta < desde) {
+                throw new IllegalArgumentException("rango al revés: " + parte);
+            }
+            if ((long) hasta - desde + 1 > MAX_IDS - trabajos.size()) {
+                throw new IllegalArgumentException("demasiados ids (como máximo " + MAX_IDS + ")");
+            }
+            //long para que un rango que acaba en Integer.MAX_VALUE no dé la vuelta
+            for (long id = desde; id <= hasta; id++) {
+                trabajos.add(new Trabajo((int) id, directorio));
+            }
+        }
+        return trabajos;
+    }
+
+    /* =========================
+       Transferencia
+       ========================= */
+
+    void subir(List<Trabajo> trabajos) throws InterruptedException {
+        ejecutar(trabajos, true);
+    }
+
+    void descargar(List<Trabajo> trabajos) throws InterruptedException {
+        ejecutar(trabajos, false);
+    }
+
+    /**
+     * Reparte los trabajos entre los hilos: cada hilo tiene su conexión y va tomando
+     * el siguiente trabajo pendiente hasta que no quedan.
+     */
+    private void ejecutar(List<Trabajo> trabajos, boolean subida) throws InterruptedException {
+        int total = trabajos.size();
+        long inicio = System.nanoTime();
+        Queue<Trabajo> pendientes = new ConcurrentLinkedQueue<>(descartarRepetidos(trabajos, subida));
+
+        ScheduledExecutorService progreso = Executors.newSingleThreadScheduledExecutor(tarea -> {
+            Thread hilo = new Thread(tarea, "progreso");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        progreso.scheduleAtFixedRate(() -> mostrarProgreso(total, inicio),
+                PERIODO_PROGRESO_MS, PERIODO_PROGRESO_MS, TimeUnit.MILLISECONDS);
+
+        List<Thread> hilos = new ArrayList<>();
+        for (int i = 0, n = Math.min(conexiones, pendientes.size()); i < n; i++) {
+            Thread hilo = new Thread(() -> trabajar(pendientes, subida), "transferencia-" + (i + 1));
+            hilos.add(hilo);
+            hilo.start();
+        }
+        for (Thread hilo : hilos) {
+            hilo.join();
+        }
+        progreso.shutdownNow();
+
+        mostrarResumen(total, hilos.size(), inicio, subida);
+    }
+
+    /**
+     * Los trabajos que se pisarían entre sí irían por conexiones distintas a la vez y el
+     * resultado dependería de cuál termina último: varios archivos para la misma tarea
+     * al subir, o varias descargas al mismo archivo. Se dan todos por fallidos.
+     */
+    private List<Trabajo> descartarRepetidos(List<Trabajo> trabajos, boolean subida) {
+        Map<Object, List<Trabajo>> porClave = new LinkedHashMap<>();
+        for (Trabajo trabajo : trabajos) {
+            //en un directorio de descarga cada tarea se guarda con su propio nombre
+            Object clave = subida || trabajo.archivo().isDirectory()
+                    ? (Integer) trabajo.taskId() : trabajo.archivo().getAbsoluteFile();
+            porClave.computeIfAbsent(clave, c -> new ArrayList<>()).add(trabajo);
+        }
+        List<Trabajo> validos = new ArrayList<>();
+        for (List<Trabajo> grupo : porClave.values()) {
+            if (grupo.size() == 1) {
+                validos.add(grupo.get(0));
+                continue;
+            }
+            String error = subida
+                    ? "la tarea aparece con " + grupo.size() + " archivos; no se sube ninguno"
+                    : "el destino aparece en " + grupo.size() + " descargas; no se descarga ninguna";
+            for (Trabajo trabajo : grupo) {
+                fallo(trabajo, error);
+                terminados.incrementAndGet();
+            }
+        }
+        return validos;
+    }
+
+    private void trabajar(Queue<Trabajo> pendientes, boolean subida) {
+        Conexion conexion = null;
+        Trabajo trabajo;
+        while ((trabajo = pendientes.poll()) != null) {
+            try {
+                if (conexion == null) {
+                    conexion = new Conexion();
+                }
+                String error = subida ? conexion.subir(trabajo) : conexion.descargar(trabajo);
+                if (error != null) {
+                    fallo(trabajo, error);
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                fallo(trabajo, e.getMessage());
+                //la conexión ha quedado en un estado desconocido: se abre otra para el siguiente archivo
+                if (conexion != null) {
+                    conexion.close();
+                    conexion = null;
+                }
+            }
+            terminados.incrementAndGet();
+        }
+        if (conexion != null) {
+            conexion.cerrar();
+        }
+    }
+
+    private void fallo(Trabajo trabajo, String error) {
+        fallidos.incrementAndGet();
+        synchronized (errores) {
+            errores.add("tarea " + trabajo.taskId() + " (" + trabajo.archivo() + "): " + error);
+        }
+    }
+
+    private void mostrarProgreso(int total, long inicio) {
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        System.out.printf("  %d/%d archivos, %s, %s/s, %d fallidos%n", terminados.get(), total,
+                megas(bytes.get()), megas((long) (bytes.get() / segundos)), fallidos.get());
+    }
+
+    private void mostrarResumen(int total, int numConexiones, long inicio, boolean subida) {
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        System.out.printf("%s terminada en %.1f s con %d conexiones: %d archivos, %d correctos%s, %d fallidos%n",
+                subida ? "Subida" : "Descarga", segundos, numConexiones, total,
+                total - fallidos.get(), subida ? " (" + omitidos.get() + " ya estaban en el servidor)" : "",
+                fallidos.get());
+        System.out.printf("%s transferidos, %s/s, %.1f archivos/s%n",
+                megas(bytes.get()), megas((long) (bytes.get() / segundos)), total / segundos);
+        if (!compresion.isVacio()) {
+            System.out.println("Compresión de subidas: " + compresion);
+        }
+        synchronized (errores) {
+            errores.stream().limit(MAX_ERRORES_MOSTRADOS).forEach(error -> System.out.println("  Error: " + error));
+            if (errores.size() > MAX_ERRORES_MOSTRADOS) {
+                System.out.println("  ... y " + (errores.size() - MAX_ERRORES_MOSTRADOS) + " errores más");
+            }
+        }
+    }
+
+    private static String megas(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    /**
+     * Conexión de uno de los hilos con el servidor.
+     * Usa el mismo protocolo que las transferencias interactivas del Client.
+     */
+    private class Conexion implements Closeable {
+
+        private final Socket socket;
+        private final ObjectOutputStream out;
+        private final ObjectInputStream in;
+        //códec acordado con el servidor para esta conexión (null = sin compresión)
+        private final String codec;
+
+        Conexion() throws IOException, ClassNotFoundException {
+            socket = new Socket(host, puerto);
+            socket.setTcpNoDelay(true);
+            out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            out.flush();
+            in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+
+            Message hello = new Message(Type.HELLO);
+            hello.setCodecs(List.of(Compression.DEFLATE));
+            out.writeObject(hello);
+            out.flush();
+            codec = ((Message) in.readObject()).getCodec();
+        }
+
+        /**
+         * Sube el archivo a su tarea. Se envía antes su hash para no transferir
+         * los contenidos que el servidor ya tiene.
+         * Devuelve el error del servidor, o null si la subida ha terminado bien.
+         */
+        String subir(Trabajo trabajo) throws IOException, ClassNotFoundException {
+            File archivo = trabajo.archivo();
+            if (!archivo.isFile()) {
+                return "el archivo no existe";
+            }
+
+            Message start = peticion(Type.UPLOAD_FILE, trabajo.taskId());
+            start.setFileName(archivo.getName());
+            start.setContentHash(hash(archivo));
+            out.writeObject(start);
+            out.flush();
+
+            Message decision = (Message) in.readObject();
+            if (decision.getType() == Type.ERROR) {
+                return decision.getErrorMessage();
+            }
+            if (decision.isSkipTransfer()) {
+                omitidos.incrementAndGet();
+                return null;
+            }
+
+            //los archivos ya comprimidos (zip, jpg, mp4...) se envían tal cual
+            Compression.Compresor compresor = codec != null && Compression.mereceComprimir(archivo.getName())
+                    ? new Compression.Compresor(compresion) : null;
+            try (InputStream fis = new FileInputStream(archivo)) {
+                byte[] buffer = new byte[TAMAÑO_BLOQUE];
+                int bytesRead;
+                while ((bytesRead = fis.readNBytes(buffer, 0, buffer.length)) > 0) {
+                    Message block = new Message(Type.UPLOAD_FILE);
+                    if (compresor != null) {
+                        block.setDataBlock(compresor.comprimir(buffer, bytesRead));
+                        block.setCompressed(true);
+                    } else {
+                        block.setDataBlock(Arrays.copyOf(buffer, bytesRead));
+                    }
+                    out.writeObject(block);
+                    out.reset();
+                    bytes.addAndGet(bytesRead);
+                }
+                Message end = new Message(Type.UPLOAD_FILE);
+                end.setLastBlock(true);
+                out.writeObject(end);
+                out.flush();
+            } finally {
+                if (compresor != null) {
+                    compresor.close();
+                }
+            }
+
+            Message response = (Message) in.readObject();
+            return response.getType() == Type.ERROR ? response.getErrorMessage() : null;
+        }
+
+        /**
+         * Descarga el adjunto de la tarea. Se escribe en un archivo temporal que solo
+         * toma su nombre definitivo al terminar, así que no quedan archivos a medias.
+         * Devuelve el error del servidor, o null si la descarga ha terminado bien.
+         */
+        String descargar(Trabajo trabajo) throws IOException, ClassNotFoundException {
+            File destino = trabajo.archivo();
+            File directorio = destino.isDirectory() ? destino : destino.getAbsoluteFile().getParentFile();
+
+            out.writeObject(peticion(Type.DOWNLOAD_FILE, trabajo.taskId()));
+            out.flush();
+
+            Message block = (Message) in.readObject();
+            if (block.getType() == Type.ERROR) {
+                return block.getErrorMessage();
+            }
+            directorio.mkdirs();
+            File temporal = File.createTempFile("." + trabajo.taskId() + "-", ".part", directorio);
+            String error = null;
+            try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(temporal), 64 * 1024);
+                 Compression.Descompresor descompresor = new Compression.Descompresor()) {
+                while (true) {
+                    //un error a mitad de la descarga la termina (la conexión sigue sirviendo para los demás)
+                    if (block.getType() == Type.ERROR) {
+                        error = block.getErrorMessage();
+                        break;
+                    }
+                    if (block.getDataBlock() != null) {
+                        byte[] datos = block.isCompressed()
+                                ? descompresor.descomprimir(block.getDataBlock())
+                                : block.getDataBlock();
+                        fos.write(datos);
+                        bytes.addAndGet(datos.length);
+                    }
+                    if (block.isLastBlock()) {
+                        break;
+                    }
+                    block = (Message) in.readObject();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                temporal.delete();
+                throw e;
+            }
+            if (error != null) {
+                temporal.delete();
+                return error;
+            }
+
+            //en un directorio, el archivo toma el nombre que indica el servidor (id de la tarea y extensión)
+            if (destino.isDirectory()) {
+                String nombre = block.getFileName() != null ? block.getFileName() : String.valueOf(trabajo.taskId());
+                destino = new File(directorio, new File(nombre).getName());
+            }
+            Files.move(temporal.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return null;
+        }
+
+        private Message peticion(Type tipo, int taskId) {
+            Message msg = new Message(tipo);
+            msg.setTaskId(taskId);
+            msg.setTraceId(traza + "-" + peticiones.incrementAndGet());
+            return msg;
+        }
+
+        //avisa al servidor de que la conexión se cierra
+        void cerrar() {
+            try {
+                out.writeObject(new Message(Type.CLOSE));
+                out.flush();
+            } catch (IOException ignored) {}
+            close();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    //Calcula el hash SHA-256 del contenido de un archivo, en hexadecimal
+    private static String hash(File archivo) throws IOException {
+        try (InputStream fis = new FileInputStream(archivo)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package org.example.client;
 
+import org.example.common.Compression;
 import org.example.common.Message;
 import org.example.common.Message.Type;
 import org.example.common.Task;
+import org.example.common.TaskQuery;
+import org.example.common.TaskQuery.*;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -10,6 +13,11 @@ import java.util.Date;
 
 import java.io.*;
 import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Scanner;
 
@@ -22,24 +30,86 @@ import java.util.Scanner;
 public class Client implements Runnable {
     //sirve para configurar ip y puerto a que see conecta el cliente -> localhost, ip privada para arrancar ambos dentro de la LAN,
     //ip publica para camprobar caso práctico
-    private static final String SERVER_HOST = "37.230.78.133";
-    private static final int SERVER_PORT = 5050;
-
-    //creación de objetos utilitarios
-    private final Socket socket;
-    private final ObjectOutputStream out;
-    private final ObjectInputStream in;
+    //(se pueden cambiar con -Dtareas.host y -Dtareas.puerto, por ejemplo para usar un ShardProxy local)
+    private static final String SERVER_HOST = System.getProperty("tareas.host", "37.230.78.133");
+    private static final int SERVER_PORT = Integer.getInteger("tareas.puerto", 5050);
+    //réplica de solo lectura opcional (-Dtareas.replica=host:puerto): las consultas y descargas se le piden a ella
+    //mientras no vaya más retrasada que -Dtareas.desfaseMaxMs respecto al primario; si no, se piden al primario
+    private static final String REPLICA = System.getProperty("tareas.replica");
+    private static final long DESFASE_MAX_MS = Long.getLong("tareas.desfaseMaxMs", 5000);
+    //con -Dtareas.traza=true se muestra la latencia de cada petición junto a su traceId,
+    //el mismo que el servidor anota en sus eventos de JDK Flight Recorder
+    private static final boolean TRAZA = Boolean.getBoolean("tareas.traza");
+    //el servidor cierra las conexiones que pasan este tiempo sin peticiones (-Dtareas.inactividadMs, igual que en el Server):
+    //si la conexión lleva inactiva más de la mitad, se abre otra antes de la siguiente petición
+    private static final long TIEMPO_INACTIVIDAD_MS = Long.getLong("tareas.inactividadMs", 5 * 60 * 1000L);
+
+    //creación de objetos utilitarios (la conexión se vuelve a abrir si se pierde)
+    private Socket socket;
+    private ObjectOutputStream out;
+    private ObjectInputStream in;
     private final Scanner scanner;
 
+    //códec de compresión acordado con el servidor (null = sin compresión)
+    private String codec;
+    //última vez que se usó la conexión con el primario, y si una operación la ha dejado a medias
+    private long ultimoUso;
+    private boolean conexionRota;
+    //bytes ahorrados y CPU gastada al comprimir las subidas
+    private final Compression.Contador compresion = new Compression.Contador();
+
+    //conexión dedicada a recibir los avisos de vencimiento (null si no se ha suscrito)
+    private Socket avisosSocket;
+
+    //conexión con la réplica (null si no hay réplica o se ha caído)
+    private Socket replicaSocket;
+    private ObjectOutputStream replicaOut;
+    private ObjectInputStream replicaIn;
+    private long ultimoUsoReplica;
+
+    //respuesta a una lectura y flujo del que llegan sus mensajes siguientes (bloques de una descarga)
+    private record Lectura(Message response, ObjectInputStream in) {}
+
+    //cada petición lleva un traceId: un prefijo aleatorio de la sesión y el número de petición
+    private final String sesion = HexFormat.of().toHexDigits(new SecureRandom().nextInt());
+    private long peticiones;
+    //última petición enviada y momento en que se envió (para mostrar su latencia)
+    private Message peticionActual;
+    private long inicioPeticion;
+
     //constructor público, único
     public Client() throws IOException {
+        scanner = new Scanner(System.in);
+        conectar();
+
+        if (REPLICA != null) {
+            connectReplica();
+        }
+    }
 
+    /// Abre la conexión con el primario y negocia la compresión
+    private void conectar() throws IOException {
         //socket contiene el IP y puerto del servidor
         socket = new Socket(SERVER_HOST, SERVER_PORT);
         //socket contiene el IPy por tanto es capaz de crear los streams necesarios para la conexión
-        out = new ObjectOutputStream(socket.getOutputStream());
+        //cada mensaje sale en una sola escritura al hacer flush, sin esperar al ACK del anterior
+        socket.setTcpNoDelay(true);
+        out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        out.flush();
         in = new ObjectInputStream(socket.getInputStream());
-        scanner = new Scanner(System.in);
+
+        //se negocia la compresión de listas y archivos para esta conexión
+        Message hello = new Message(Type.HELLO);
+        hello.setCodecs(List.of(Compression.DEFLATE));
+        out.writeObject(hello);
+        out.flush();
+        try {
+            codec = ((Message) in.readObject()).getCodec();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Respuesta de negociación no válida", e);
+        }
+        ultimoUso = System.currentTimeMillis();
+        conexionRota = false;
     }
 
     /**
@@ -61,15 +131,25 @@ public class Client implements Runnable {
                     case 5 -> uploadFile();
                     case 6 -> downloadFile();
                     case 7 -> changeState();
+                    case 8 -> subscribe();
+                    case 9 -> searchTasks();
+                    case 10 -> showStats();
+                    case 11 -> bulkUpload();
+                    case 12 -> bulkDownload();
                     case 0 -> {
                         sendClose();
                         exit = true;
                     }
                     default -> System.out.println("Opción no válida");
                 }
+                mostrarLatencia();
             } catch (Exception e) {
                 // Captura de errores generales durante la ejecución
                 System.err.println("Error: " + e.getMessage());
+                // La conexión puede haber quedado a medias (una transferencia cortada): se abre otra
+                if (e instanceof IOException) {
+                    conexionRota = true;
+                }
             }
         }
         // Cierre del socket al salir del programa
@@ -84,56 +164,121 @@ public class Client implements Runnable {
      */
     private void listTasks() throws IOException, ClassNotFoundException {
         Message msg = new Message(Type.LIST);
-        out.writeObject(msg);
-        out.flush();
+        msg.setIncludeArchived(readIncludeArchived());
 
         // Recepción de la respuesta del servidor
-        Message response = (Message) in.readObject();
+        Message response = read(msg).response();
         printTaskList(response);
     }
     /**
      * Solicita al servidor una lista de tareas filtradas
 
-     * Hay 3 opciones de filtrado: solamente tareas no completadas, hasta cierta fecha de vencimiento, de una cierta prioridad
+     * Se pueden combinar varios criterios (todos o alguno), ordenar el resultado
+     * y pedir solo las primeras tareas
      *
      */
     private void filterTasks() throws IOException, ClassNotFoundException, ParseException {
 
         //se crea el mensaje de tipo FILTER que se enviará al servidor
         Message msg = new Message(Type.FILTER);
+        msg.setFilterQuery(readQuery());
+        msg.setIncludeArchived(readIncludeArchived());
 
-        System.out.println("Filtrar por:");
-        System.out.println("1. Tareas pendientes");
-        System.out.println("2. Fecha máxima de vencimiento");
-        System.out.println("3. Prioridad");
+        //envío el mensaje creado y escucha de la respuesta (de la réplica o del primario)
+        Message response = read(msg).response();
+        printTaskList(response);
+    }
+    /**
+     * Busca tareas por texto en su descripción.
+     * Opcionalmente se pueden añadir los mismos criterios que en filterTasks.
+     */
+    private void searchTasks() throws IOException, ClassNotFoundException, ParseException {
+        Message msg = new Message(Type.SEARCH);
+        msg.setQuery(readLine("Texto a buscar: "));
 
-        int option = readInt("Elige el filtro: ");
+        System.out.print("¿Añadir filtros? (s/n): ");
+        if (scanner.nextLine().trim().equalsIgnoreCase("s")) {
+            msg.setFilterQuery(readQuery());
+        }
+        msg.setIncludeArchived(readIncludeArchived());
 
+        // Las tareas llegan ordenadas de más a menos relevante
+        Message response = read(msg).response();
+        printTaskList(response);
+    }
 
-        switch (option) {
-            case 1 -> msg.setCompleted(false);
-            case 2 -> {
-                SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy HH:mm");
-                sdf.setLenient(false);
+    /**
+     * Muestra los contadores de tareas (pendientes por prioridad, vencidas, con archivo...)
+     * sin descargar la lista completa.
+     */
+    private void showStats() throws IOException, ClassNotFoundException {
+        Message response = read(new Message(Type.STATS)).response();
+        if (response.getType() == Type.ERROR) {
+            System.out.println("Error: " + response.getErrorMessage());
+            return;
+        }
+        System.out.println(response.getResult());
+    }
 
-                String input = readLine("Introduce la fecha límite (dd/MM/yyyy HH:mm): ");
-                msg.setMaxDueDate(sdf.parse(input));
-            }
-            case 3 -> msg.setPriority(readInt("Introduce la prioridad (1=Alta, 2=Media, 3=Baja): "));
-            default -> {
-                System.out.println("Filtro no válido");
-                return;
+    /**
+     * Pregunta al usuario los criterios de una consulta:
+     * condiciones (combinadas con Y / O), orden y número máximo de resultados.
+     */
+    private TaskQuery readQuery() throws ParseException {
+        List<Condition> conditions = new ArrayList<>();
+        SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy HH:mm");
+        sdf.setLenient(false);
+
+        while (true) {
+            System.out.println("Añadir criterio:");
+            System.out.println("1. Tareas pendientes");
+            System.out.println("2. Tareas completadas");
+            System.out.println("3. Rango de fechas de vencimiento");
+            System.out.println("4. Prioridad");
+            System.out.println("5. Con archivo adjunto");
+            System.out.println("6. Sin archivo adjunto");
+            System.out.println("0. No añadir más criterios");
+
+            int option = readInt("Elige el criterio: ");
+            switch (option) {
+                case 1 -> conditions.add(new Completed(false));
+                case 2 -> conditions.add(new Completed(true));
+                case 3 -> {
+                    String from = readLine("Desde (dd/MM/yyyy HH:mm, vacío = sin límite): ");
+                    String to = readLine("Hasta (dd/MM/yyyy HH:mm, vacío = sin límite): ");
+                    conditions.add(new DueBetween(
+                            from.isBlank() ? null : sdf.parse(from),
+                            to.isBlank() ? null : sdf.parse(to)));
+                }
+                case 4 -> conditions.add(new TaskQuery.Priority(readInt("Introduce la prioridad (1=Alta, 2=Media, 3=Baja): ")));
+                case 5 -> conditions.add(new HasFile(true));
+                case 6 -> conditions.add(new HasFile(false));
+                case 0 -> { }
+                default -> System.out.println("Criterio no válido");
             }
+            if (option == 0) break;
         }
-        //envío el mensaje creado
-        out.writeObject(msg);
-        out.flush();
-        //escucha del puerto por el que estamos conectados al servidor
-        Message response = (Message) in.readObject();
-        printTaskList(response);
+
+        TaskQuery query = new TaskQuery(new And(conditions));
+        if (conditions.size() > 1 && readInt("Combinar criterios: 1=Todos, 2=Alguno: ") == 2) {
+            query.setWhere(new Or(conditions));
+        }
+
+        int sort = readInt("Ordenar por: 0=Sin orden, 1=Fecha de vencimiento, 2=Prioridad: ");
+        if (sort == 1 || sort == 2) {
+            query.setSortBy(sort == 1 ? SortField.DUE_DATE : SortField.PRIORITY);
+            System.out.print("¿Orden descendente? (s/n): ");
+            query.setDescending(scanner.nextLine().trim().equalsIgnoreCase("s"));
+        }
+
+        int limit = readInt("Número máximo de tareas (0 = todas): ");
+        if (limit > 0) {
+            query.setLimit(limit);
+        }
+        return query;
     }
     /// Crea una nueva tarea y la envía al servidor
-    private void createTask() throws IOException {
+    private void createTask() throws IOException, ClassNotFoundException {
         System.out.print("Descripción: ");
         String descripcion = scanner.nextLine();
         //clase util de Java que nos sirve para variables de
@@ -165,26 +310,33 @@ public class Client implements Runnable {
         Message msg = new Message(Type.CREATE);
         msg.setTask(task);
 
-        out.writeObject(msg);
-        out.flush();
-
-        System.out.println("Solicitud de creación enviada.");
+        Message response = pedir(msg);
+        if (response.getType() == Type.ERROR) {
+            System.out.println("Error: " + response.getErrorMessage());
+            return;
+        }
+        System.out.println("Tarea creada.");
     }
     /// Solicita al servidor eliminar una tarea por ID
-    private void deleteTask() throws IOException {
+    private void deleteTask() throws IOException, ClassNotFoundException {
         int id = readInt("ID de la tarea a eliminar: ");
 
         Message msg = new Message(Type.DELETE);
         msg.setTaskId(id);
+        msg.setExpectedVersion(readExpectedVersion());
 
-        out.writeObject(msg);
-        out.flush();
-        //no espera ninguna respuesta del servidor
-        System.out.println("Solicitud a eliminar enviada");
+        Message response = pedir(msg);
+        if (response.getType() == Type.ERROR) {
+            printError(response);
+        } else if (Boolean.TRUE.equals(response.getResult())) {
+            System.out.println("Tarea eliminada.");
+        } else {
+            System.out.println("La tarea no existe.");
+        }
     }
 
     ///Envía un archivo al servidor para adjuntarlo a una tarea
-    private void uploadFile() throws IOException {
+    private void uploadFile() throws IOException, ClassNotFoundException {
         int taskId = readInt("ID de la tarea: ");
         System.out.print("Ruta local del archivo: ");
         String path = scanner.nextLine();
@@ -195,12 +347,25 @@ public class Client implements Runnable {
             return;
         }
 
+        //se envía el hash del contenido: si el servidor ya tiene el archivo no hace falta subirlo
         Message start = new Message(Type.UPLOAD_FILE);
         start.setTaskId(taskId);
         start.setFileName(file.getName());
+        start.setContentHash(hashFile(file));
 
-        out.writeObject(start);
-        out.flush();
+        Message decision = pedir(start);
+        if (decision.getType() == Type.ERROR) {
+            System.out.println("Error: " + decision.getErrorMessage());
+            return;
+        }
+        if (decision.isSkipTransfer()) {
+            System.out.println("El servidor ya tenía este archivo: adjuntado sin transferirlo.");
+            return;
+        }
+
+        //los archivos ya comprimidos (zip, jpg, mp4...) se envían tal cual
+        Compression.Compresor compresor = codec != null && Compression.mereceComprimir(file.getName())
+                ? new Compression.Compresor(compresion) : null;
 
         try (FileInputStream fis = new FileInputStream(file)) {
             byte[] buffer = new byte[4096];
@@ -208,7 +373,12 @@ public class Client implements Runnable {
 
             while ((bytesRead = fis.read(buffer)) != -1) {
                 Message block = new Message(Type.UPLOAD_FILE);
-                block.setDataBlock(copyBuffer(buffer, bytesRead));
+                if (compresor != null) {
+                    block.setDataBlock(compresor.comprimir(buffer, bytesRead));
+                    block.setCompressed(true);
+                } else {
+                    block.setDataBlock(copyBuffer(buffer, bytesRead));
+                }
                 block.setLastBlock(false);
                 out.writeObject(block);
                 out.flush();
@@ -219,41 +389,148 @@ public class Client implements Runnable {
             end.setLastBlock(true);
             out.writeObject(end);
             out.flush();
+        } finally {
+            if (compresor != null) {
+                compresor.close();
+            }
         }
 
+        //confirmación del servidor una vez guardado el archivo
+        Message response = (Message) in.readObject();
+        ultimoUso = System.currentTimeMillis();
+        if (response.getType() == Type.ERROR) {
+            System.out.println("Error: " + response.getErrorMessage());
+            return;
+        }
         System.out.println("Archivo subido correctamente.");
     }
 
     private void downloadFile() throws IOException, ClassNotFoundException {
         int taskId = readInt("Task ID: ");
 
+        System.out.print("Guardar archivo como: ");
+        String fileName = scanner.nextLine();
+
+        // Si ya hay una descarga a medias con ese nombre, se puede continuar donde se quedó
+        File destino = new File(fileName);
+        long desde = 0;
+        if (destino.isFile() && destino.length() > 0) {
+            System.out.print("El archivo ya existe (" + destino.length() + " bytes). ¿Reanudar la descarga? (s/n): ");
+            if (scanner.nextLine().trim().equalsIgnoreCase("s")) {
+                desde = destino.length();
+            }
+        }
+
         Message msg = new Message(Type.DOWNLOAD_FILE);
         msg.setTaskId(taskId);
+        if (desde > 0) {
+            msg.setOffset(desde);
+        }
 
-        out.writeObject(msg);
-        out.flush();
-
-        System.out.print("Guardar archivo como: ");
-        String fileName = scanner.nextLine();
+        //el primer bloque indica de qué conexión llegan los demás
+        Lectura lectura = read(msg);
+        //si la respuesta es un error, no se toca el archivo local
+        if (lectura.response().getType() == Type.ERROR) {
+            System.out.println("Error: " + lectura.response().getErrorMessage());
+            return;
+        }
 
-        try (FileOutputStream fos = new FileOutputStream(fileName, true)) {
+        long recibidos = 0;
+        Long tamaño = null;
+        String error = null;
+        try (FileOutputStream fos = new FileOutputStream(destino, desde > 0);
+             Compression.Descompresor descompresor = new Compression.Descompresor()) {
+            Message block = lectura.response();
             while (true) {
-                Message block = (Message) in.readObject();
-                 if (block.getDataBlock() != null) {
-                     fos.write(block.getDataBlock());
+                //un error a mitad de la descarga (el archivo ya no existe, un servidor ha caído) la termina
+                if (block.getType() == Type.ERROR) {
+                    error = block.getErrorMessage();
+                    break;
                 }
-                   // Cuando llega el mensaje final, se termina
+                if (block.getDataBlock() != null) {
+                    //los bloques comprimidos forman un único flujo durante toda la descarga
+                    byte[] datos = block.isCompressed()
+                            ? descompresor.descomprimir(block.getDataBlock())
+                            : block.getDataBlock();
+                    fos.write(datos);
+                    recibidos += datos.length;
+                }
+                // Cuando llega el mensaje final, se termina
                 if (block.isLastBlock()) {
+                    tamaño = block.getFileSize();
                     break;
                 }
-               
+                block = (Message) lectura.in().readObject();
             }
         }
+        //el servidor empieza a contar la inactividad al terminar de enviar los bloques
+        if (lectura.in() == in) {
+            ultimoUso = System.currentTimeMillis();
+        } else {
+            ultimoUsoReplica = System.currentTimeMillis();
+        }
+
+        if (error != null) {
+            destino.delete();
+            System.out.println("Error: " + error + " (se borra el archivo incompleto)");
+            return;
+        }
+        System.out.println("Archivo descargado correctamente (" + (desde + recibidos)
+                + (tamaño != null ? " de " + tamaño : "") + " bytes).");
+    }
 
-        System.out.println("Archivo descargado correctamente.");
+    /**
+     * Sube de una vez los archivos de un directorio (el número al principio del nombre
+     * es el id de la tarea: 12.pdf, 12-informe.pdf) o los de un manifiesto ("id ruta" por línea).
+     * Se usan varias conexiones en paralelo (-Dtareas.conexionesMasivas).
+     */
+    private void bulkUpload() throws IOException, InterruptedException {
+        File origen = new File(readLine("Directorio o manifiesto: ").trim());
+        if (!origen.exists()) {
+            System.out.println("No existe " + origen);
+            return;
+        }
+        List<BulkTransfer.Trabajo> trabajos = origen.isDirectory()
+                ? BulkTransfer.desdeDirectorio(origen) : BulkTransfer.desdeManifiesto(origen);
+        if (trabajos.isEmpty()) {
+            System.out.println("No hay archivos que subir.");
+            return;
+        }
+        new BulkTransfer(SERVER_HOST, SERVER_PORT, BulkTransfer.CONEXIONES, sesion + "-masiva").subir(trabajos);
+        //la transferencia usa sus propias conexiones: la del menú puede haber pasado el tiempo de inactividad
+        comprobarConexion();
     }
 
-    private void changeState() throws IOException {
+    /**
+     * Descarga de una vez los adjuntos de varias tareas: las de un manifiesto ("id ruta" por línea)
+     * o una lista de ids (1-100,205) que se guardan en un directorio con el nombre que indica el servidor.
+     */
+    private void bulkDownload() throws IOException, InterruptedException {
+        File destino = new File(readLine("Manifiesto o directorio de destino: ").trim());
+        List<BulkTransfer.Trabajo> trabajos;
+        if (destino.isFile()) {
+            trabajos = BulkTransfer.desdeManifiesto(destino);
+        } else {
+            if (!destino.isDirectory() && !destino.mkdirs()) {
+                System.out.println("No se pudo crear el directorio " + destino);
+                return;
+            }
+            try {
+                trabajos = BulkTransfer.desdeIds(readLine("IDs de las tareas (por ejemplo 1-100,205): "), destino);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Lista de ids no válida: " + e.getMessage());
+                return;
+            }
+        }
+        if (trabajos.isEmpty()) {
+            System.out.println("No hay archivos que descargar.");
+            return;
+        }
+        new BulkTransfer(SERVER_HOST, SERVER_PORT, BulkTransfer.CONEXIONES, sesion + "-masiva").descargar(trabajos);
+        comprobarConexion();
+    }
+
+    private void changeState() throws IOException, ClassNotFoundException {
         int taskId = readInt("ID de la tarea: ");
 
         System.out.print("Marcar como completada (true/false): ");
@@ -263,28 +540,228 @@ public class Client implements Runnable {
         Message msg = new Message(Type.CHANGE_STATE);
         msg.setTaskId(taskId);
         msg.setCompleted(completed);
+        msg.setExpectedVersion(readExpectedVersion());
 
-        //envío de la tarea
-        out.writeObject(msg);
-        out.flush();
+        //envío de la tarea; el servidor responde con la tarea ya cambiada (y su nueva versión) o con un error
+        Message response = pedir(msg);
+        if (response.getType() == Type.ERROR) {
+            printError(response);
+            return;
+        }
+        System.out.println("Estado cambiado: " + response.getResult());
+    }
+
+    /**
+     * Se suscribe a los avisos de vencimiento del servidor.
+     * Los avisos llegan en cualquier momento, así que se reciben por una
+     * conexión aparte atendida por un hilo en segundo plano.
+     */
+    private void subscribe() throws IOException, ClassNotFoundException {
+        if (avisosSocket != null) {
+            System.out.println("Ya estás recibiendo avisos.");
+            return;
+        }
+
+        Socket socketAvisos = new Socket(SERVER_HOST, SERVER_PORT);
+        ObjectOutputStream avisosOut = new ObjectOutputStream(socketAvisos.getOutputStream());
+        ObjectInputStream avisosIn = new ObjectInputStream(socketAvisos.getInputStream());
 
-        System.out.println("Solicitud de cambio de estado enviada.");
+        avisosOut.writeObject(new Message(Type.SUBSCRIBE));
+        avisosOut.flush();
+        // Confirmación de la suscripción
+        avisosIn.readObject();
+        avisosSocket = socketAvisos;
+
+        Thread hilo = new Thread(() -> {
+            try {
+                while (true) {
+                    Message evento = (Message) avisosIn.readObject();
+                    if (evento.getType() != Type.EVENT) continue;
+                    String texto = evento.getEvent() == Message.Event.DUE_SOON ? "Vence pronto" : "Vencida";
+                    System.out.println("\n[AVISO] " + texto + " -> " + evento.getTask());
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // La conexión de avisos se ha cerrado
+            }
+        }, "avisos");
+        hilo.setDaemon(true);
+        hilo.start();
+
+        System.out.println("Suscrito a los avisos de vencimiento.");
     }
 
      /* =========================
        Métodos auxiliares
        ========================= */
 
+    /**
+     * Envía una petición de lectura. Si hay réplica se le pide a ella indicando el desfase
+     * máximo aceptado; si la réplica responde con un error (va retrasada, aún no tiene el
+     * archivo...) o no responde, se repite la petición al primario.
+     */
+    private Lectura read(Message msg) throws IOException, ClassNotFoundException {
+        //si se repite al primario, la petición conserva su traceId
+        trazar(msg);
+        if (replicaOut != null && System.currentTimeMillis() - ultimoUsoReplica > TIEMPO_INACTIVIDAD_MS / 2) {
+            //la réplica también cierra las conexiones inactivas
+            closeReplica();
+            connectReplica();
+        }
+        if (replicaOut != null) {
+            msg.setMaxStalenessMs(DESFASE_MAX_MS);
+            try {
+                replicaOut.writeObject(msg);
+                replicaOut.flush();
+                Message response = (Message) replicaIn.readObject();
+                ultimoUsoReplica = System.currentTimeMillis();
+                if (response.getType() != Type.ERROR) {
+                    return new Lectura(response, replicaIn);
+                }
+                System.out.println("(réplica: " + response.getErrorMessage() + "; se consulta al primario)");
+            } catch (IOException e) {
+                System.out.println("(réplica no disponible; se consulta al primario)");
+                closeReplica();
+            }
+            msg.setMaxStalenessMs(null);
+        }
+        Message response = alPrimario(msg);
+        return new Lectura(response, in);
+    }
+
+    /// Envía una petición al primario con un nuevo traceId y devuelve su respuesta
+    private Message pedir(Message msg) throws IOException, ClassNotFoundException {
+        trazar(msg);
+        return alPrimario(msg);
+    }
+
+    /**
+     * Envía una petición al primario y devuelve su respuesta.
+     * Si la conexión se ha perdido (el servidor cierra las que pasan mucho tiempo
+     * inactivas, o se ha reiniciado), se vuelve a conectar y se repite una vez.
+     * Una petición que cambia tareas solo se repite si no se llegó a enviar: si se
+     * pierde la respuesta, el servidor puede haberla aplicado ya y repetirla la duplicaría.
+     */
+    private Message alPrimario(Message msg) throws IOException, ClassNotFoundException {
+        comprobarConexion();
+        Message response;
+        boolean enviada = false;
+        try {
+            out.writeObject(msg);
+            out.flush();
+            enviada = true;
+            response = (Message) in.readObject();
+        } catch (IOException e) {
+            if (enviada && !esLectura(msg.getType())) {
+                throw new IOException("Se ha perdido la respuesta del servidor;"
+                        + " comprueba si la operación se ha aplicado antes de repetirla", e);
+            }
+            System.out.println("(conexión con el servidor perdida; se reconecta)");
+            reconectar();
+            out.writeObject(msg);
+            out.flush();
+            response = (Message) in.readObject();
+        }
+        ultimoUso = System.currentTimeMillis();
+        return response;
+    }
+
+    /// Peticiones que no cambian nada en el servidor y se pueden repetir sin riesgo
+    private static boolean esLectura(Type tipo) {
+        return switch (tipo) {
+            case LIST, FILTER, SEARCH, STATS -> true;
+            default -> false;
+        };
+    }
+
+    /// Abre otra conexión con el primario si la actual ha quedado a medias o el servidor ya puede haberla cerrado
+    private void comprobarConexion() throws IOException {
+        if (conexionRota || System.currentTimeMillis() - ultimoUso > TIEMPO_INACTIVIDAD_MS / 2) {
+            reconectar();
+        }
+    }
+
+    /// Cierra la conexión con el primario y abre otra (con su propia negociación de la compresión)
+    private void reconectar() throws IOException {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        conectar();
+    }
+
+    /// Asigna el traceId a una petición y anota cuándo se envía
+    private void trazar(Message msg) {
+        msg.setTraceId(sesion + "-" + ++peticiones);
+        peticionActual = msg;
+        inicioPeticion = System.nanoTime();
+    }
+
+    /// Muestra cuánto ha tardado la última petición (desde que se envió hasta que se procesó la respuesta)
+    private void mostrarLatencia() {
+        if (TRAZA && peticionActual != null) {
+            System.out.printf("[traza %s] %s: %.1f ms%n", peticionActual.getTraceId(), peticionActual.getType(),
+                    (System.nanoTime() - inicioPeticion) / 1e6);
+        }
+        peticionActual = null;
+    }
+
+    /// Abre la conexión con la réplica; si no está disponible, se trabaja solo con el primario
+    private void connectReplica() {
+        int separador = REPLICA.lastIndexOf(':');
+        try {
+            replicaSocket = new Socket(REPLICA.substring(0, separador), Integer.parseInt(REPLICA.substring(separador + 1)));
+            replicaSocket.setTcpNoDelay(true);
+            replicaOut = new ObjectOutputStream(new BufferedOutputStream(replicaSocket.getOutputStream(), 64 * 1024));
+            replicaOut.flush();
+            replicaIn = new ObjectInputStream(replicaSocket.getInputStream());
+
+            Message hello = new Message(Type.HELLO);
+            hello.setCodecs(List.of(Compression.DEFLATE));
+            replicaOut.writeObject(hello);
+            replicaOut.flush();
+            replicaIn.readObject();
+            ultimoUsoReplica = System.currentTimeMillis();
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("No se pudo conectar con la réplica " + REPLICA + ": " + e.getMessage());
+            closeReplica();
+        }
+    }
+
+    private void closeReplica() {
+        try {
+            if (replicaSocket != null) {
+                replicaSocket.close();
+            }
+        } catch (IOException ignored) {}
+        replicaSocket = null;
+        replicaOut = null;
+        replicaIn = null;
+    }
+
     /// Envía al servidor un mensaje de cierre de conexión
     private void sendClose() throws IOException {
-        out.writeObject(new Message(Type.CLOSE));
-        out.flush();
+        try {
+            out.writeObject(new Message(Type.CLOSE));
+            out.flush();
+        } catch (IOException e) {
+            // El servidor ya había cerrado la conexión
+        }
+        if (replicaOut != null) {
+            replicaOut.writeObject(new Message(Type.CLOSE));
+            replicaOut.flush();
+        }
     }
     /// Cierra el socket del cliente
     private void close() {
+        if (!compresion.isVacio()) {
+            System.out.println("Compresión de subidas: " + compresion);
+        }
         try {
             socket.close();
+            if (avisosSocket != null) {
+                avisosSocket.close();
+            }
         } catch (IOException ignored) {}
+        closeReplica();
     }
 
     /// Muestra el menú principal del cliente
@@ -297,12 +774,18 @@ public class Client implements Runnable {
         System.out.println("5. Subir archivo");
         System.out.println("6. Descargar archivo");
         System.out.println("7. Cambiar estado de la tarea (completada / no completada)");
+        System.out.println("8. Recibir avisos de vencimiento");
+        System.out.println("9. Buscar tareas por texto");
+        System.out.println("10. Ver resumen de tareas");
+        System.out.println("11. Subida masiva de archivos");
+        System.out.println("12. Descarga masiva de archivos");
         System.out.println("0. Salir");
 }
     ///Imprime por consola la lista de tareas recibida del servidor
     @SuppressWarnings("unchecked")
-    private void printTaskList(Message response) {
-        Object result = response.getResult();
+    private void printTaskList(Message response) throws IOException, ClassNotFoundException {
+        //las listas grandes pueden llegar comprimidas
+        Object result = Compression.resultadoDe(response);
         if (result instanceof List<?>) {
             List<Task> tasks = (List<Task>) result;
             tasks.forEach(System.out::println);
@@ -322,6 +805,36 @@ public class Client implements Runnable {
         System.out.print(prompt);
         return scanner.nextLine();
     }
+    // Las tareas completadas antiguas se archivan y solo se consultan si se pide
+    private boolean readIncludeArchived() {
+        return readLine("¿Incluir tareas archivadas? (s/n): ").trim().equalsIgnoreCase("s");
+    }
+    // Versión de la tarea sobre la que se hace el cambio (vacío = la que tenga)
+    private Long readExpectedVersion() {
+        String input = readLine("Versión esperada (vacío = cualquiera): ").trim();
+        return input.isEmpty() ? null : Long.parseLong(input);
+    }
+    // Muestra un error del servidor; en un conflicto, también la tarea tal y como está ahora
+    private void printError(Message error) {
+        System.out.println("Error: " + error.getErrorMessage());
+        if (error.isConflict() && error.getTask() != null) {
+            System.out.println("Tarea actual: " + error.getTask());
+        }
+    }
+    //Calcula el hash SHA-256 del contenido de un archivo, en hexadecimal
+    private String hashFile(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
     //Copia un buffer de bytes con el tamaño exacto leído
     private byte[] copyBuffer(byte[] buffer, int length) {
         byte[] data = new byte[length];
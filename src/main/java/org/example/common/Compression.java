@@ -0,0 +1,246 @@
+package org.example.common;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Clase Compression
+ *
+ * Compresión de los datos que viajan entre cliente y servidor.
+ * Se usa solo si ambos lo acuerdan al abrir la conexión (mensaje HELLO),
+ * y se aplica a:
+ *  - Los resultados grandes (listas de tareas), que se envían serializados y comprimidos
+ *  - Los bloques de archivos, comprimidos como un único flujo deflate por transferencia
+ *    para que cada bloque aproveche el diccionario de los anteriores
+ *
+ * Los archivos que ya vienen comprimidos (imágenes, vídeo, zip, documentos de Office...)
+ * se envían tal cual porque comprimirlos solo gasta CPU.
+ */
+public final class Compression {
+
+    // Nombre del único códec soportado
+    public static final String DEFLATE = "deflate";
+
+    // Por debajo de este tamaño no compensa comprimir un resultado
+    public static final int UMBRAL = 512;
+
+    // Tamaño máximo de un bloque de archivo sin comprimir (el de las transferencias masivas; las
+    // interactivas usan bloques más pequeños). Cada bloque comprimido se vacía con SYNC_FLUSH,
+    // así que al descomprimirlo no puede dar más que el bloque original
+    public static final int MAX_BLOQUE = 64 * 1024;
+
+    // Nivel rápido: en enlaces WAN interesa ahorrar ancho de banda sin disparar la CPU
+    private static final int NIVEL = Deflater.BEST_SPEED;
+
+    // Extensiones de archivos cuyo contenido ya está comprimido
+    private static final Set<String> YA_COMPRIMIDAS = Set.of(
+            ".zip", ".gz", ".tgz", ".bz2", ".xz", ".7z", ".rar", ".zst", ".jar",
+            ".jpg", ".jpeg", ".png", ".gif", ".webp", ".heic",
+            ".mp3", ".aac", ".ogg", ".flac", ".mp4", ".mkv", ".mov", ".avi", ".webm",
+            ".docx", ".xlsx", ".pptx", ".odt", ".ods", ".odp", ".pdf");
+
+    private Compression() {
+    }
+
+    /**
+     * Indica si merece la pena comprimir un archivo según su nombre o su extensión.
+     */
+    public static boolean mereceComprimir(String nombre) {
+        if (nombre == null) {
+            return true;
+        }
+        int punto = nombre.lastIndexOf('.');
+        String extension = punto >= 0 ? nombre.substring(punto).toLowerCase(Locale.ROOT) : "";
+        return !YA_COMPRIMIDAS.contains(extension);
+    }
+
+    /* =========================
+       Resultados de las respuestas
+       ========================= */
+
+    /**
+     * Sustituye el resultado del mensaje por su versión serializada y comprimida,
+     * siempre que supere el umbral y la compresión reduzca su tamaño.
+     */
+    public static void comprimirResultado(Message message, Contador contador) throws IOException {
+        if (message.getResult() == null) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(message.getResult());
+        }
+        byte[] original = bytes.toByteArray();
+        if (original.length < UMBRAL) {
+            return;
+        }
+
+        long inicio = System.nanoTime();
+        Deflater deflater = new Deflater(NIVEL);
+        byte[] comprimido;
+        try {
+            deflater.setInput(original);
+            deflater.finish();
+            ByteArrayOutputStream salida = new ByteArrayOutputStream(original.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                salida.write(buffer, 0, n);
+            }
+            comprimido = salida.toByteArray();
+        } finally {
+            deflater.end();
+        }
+        if (contador != null) {
+            contador.registrar(original.length, comprimido.length, System.nanoTime() - inicio);
+        }
+
+        if (comprimido.length < original.length) {
+            message.setResult(null);
+            message.setCompressedResult(comprimido);
+            message.setCodec(DEFLATE);
+        }
+    }
+
+    /**
+     * Devuelve el resultado de un mensaje, descomprimiéndolo si llegó comprimido.
+     */
+    public static Object resultadoDe(Message message) throws IOException, ClassNotFoundException {
+        if (message.getCompressedResult() == null) {
+            return message.getResult();
+        }
+
+        Inflater inflater = new Inflater();
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(
+                new InflaterInputStream(
+                        new ByteArrayInputStream(message.getCompressedResult()), inflater)))) {
+            return ois.readObject();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /* =========================
+       Bloques de archivos
+       ========================= */
+
+    /**
+     * Comprime los bloques de una transferencia como un único flujo deflate.
+     * Cada bloque se vacía con SYNC_FLUSH para que el receptor pueda
+     * descomprimirlo en cuanto llega.
+     */
+    public static class Compresor implements Closeable {
+
+        private final Deflater deflater = new Deflater(NIVEL);
+        private final Contador contador;
+        private final byte[] buffer = new byte[8192];
+
+        public Compresor(Contador contador) {
+            this.contador = contador;
+        }
+
+        public byte[] comprimir(byte[] datos, int longitud) {
+            long inicio = System.nanoTime();
+            deflater.setInput(datos, 0, longitud);
+
+            ByteArrayOutputStream salida = new ByteArrayOutputStream(longitud / 2 + 64);
+            int n;
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                salida.write(buffer, 0, n);
+            } while (n == buffer.length);
+
+            byte[] comprimido = salida.toByteArray();
+            if (contador != null) {
+                contador.registrar(longitud, comprimido.length, System.nanoTime() - inicio);
+            }
+            return comprimido;
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Descomprime los bloques de una transferencia generados por un Compresor.
+     * Se puede limitar lo que ocupa cada bloque descomprimido: unos pocos KB de datos
+     * deflate bien elegidos se descomprimen en decenas de MB.
+     */
+    public static class Descompresor implements Closeable {
+
+        private final Inflater inflater = new Inflater();
+        private final byte[] buffer = new byte[8192];
+        // Bytes máximos de un bloque descomprimido
+        private final int maximo;
+
+        public Descompresor() {
+            this(Integer.MAX_VALUE);
+        }
+
+        public Descompresor(int maximo) {
+            this.maximo = maximo;
+        }
+
+        public byte[] descomprimir(byte[] bloque) throws IOException {
+            inflater.setInput(bloque);
+            ByteArrayOutputStream salida = new ByteArrayOutputStream((int) Math.min(bloque.length * 3L, maximo));
+            try {
+                while (!inflater.needsInput() && !inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && !inflater.needsInput()) {
+                        throw new IOException("Bloque comprimido no válido");
+                    }
+                    if (salida.size() + n > maximo) {
+                        throw new IOException("Bloque comprimido no válido: descomprimido ocupa más de " + maximo + " bytes");
+                    }
+                    salida.write(buffer, 0, n);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Bloque comprimido no válido", e);
+            }
+            return salida.toByteArray();
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Acumula cuántos bytes se han comprimido, cuánto ocupaban después y el
+     * tiempo de CPU empleado, para poder comparar el ancho de banda ahorrado
+     * con su coste.
+     */
+    public static class Contador {
+
+        private long original;
+        private long comprimido;
+        private long nanos;
+
+        public synchronized void registrar(long original, long comprimido, long nanos) {
+            this.original += original;
+            this.comprimido += comprimido;
+            this.nanos += nanos;
+        }
+
+        public synchronized boolean isVacio() {
+            return original == 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            long ahorro = original == 0 ? 0 : 100 - (comprimido * 100 / original);
+            return String.format("%d KB -> %d KB (%d%% ahorrado), CPU %.1f ms",
+                    original / 1024, comprimido / 1024, ahorro, nanos / 1e6);
+        }
+    }
+}
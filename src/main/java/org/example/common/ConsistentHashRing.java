@@ -0,0 +1,91 @@
+package org.example.common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Clase ConsistentHashRing
+ *
+ * Reparto de las tareas entre varios servidores por hashing consistente.
+ * Cada servidor ocupa muchos puntos (nodos virtuales) de un anillo de enteros y
+ * una tarea pertenece al primer punto que sigue al hash de su id. Así las tareas
+ * quedan repartidas de forma uniforme y, al añadir o quitar un servidor, solo
+ * cambian de dueño las tareas de los tramos afectados (nadie las mueve: ver la
+ * limitación descrita en ShardProxy).
+ *
+ * La usan el Server, para crear solo ids de su partición, y el ShardProxy,
+ * para enviar cada petición al servidor dueño de la tarea.
+ * Es inmutable, así que se puede compartir entre hilos.
+ */
+public final class ConsistentHashRing {
+
+    // Puntos del anillo por servidor
+    private static final int VIRTUALES = 128;
+
+    private final List<String> nodos;
+    private final TreeMap<Integer, String> anillo = new TreeMap<>();
+
+    /**
+     * @param nodos servidores en formato host:puerto
+     */
+    public ConsistentHashRing(List<String> nodos) {
+        if (nodos.isEmpty()) {
+            throw new IllegalArgumentException("El anillo necesita al menos un servidor");
+        }
+        this.nodos = List.copyOf(nodos);
+        for (String nodo : this.nodos) {
+            for (int i = 0; i < VIRTUALES; i++) {
+                anillo.put(hashDe(nodo + "#" + i), nodo);
+            }
+        }
+    }
+
+    /**
+     * Construye el anillo a partir de una lista separada por comas ("host:puerto,host:puerto").
+     */
+    public static ConsistentHashRing deLista(String lista) {
+        List<String> nodos = new ArrayList<>();
+        for (String nodo : lista.split(",")) {
+            if (!nodo.isBlank()) {
+                nodos.add(nodo.trim());
+            }
+        }
+        return new ConsistentHashRing(nodos);
+    }
+
+    public List<String> getNodos() {
+        return nodos;
+    }
+
+    /**
+     * Servidor dueño de una tarea.
+     */
+    public String nodoDe(int taskId) {
+        Map.Entry<Integer, String> punto = anillo.ceilingEntry(mezclar(taskId));
+        return punto != null ? punto.getValue() : anillo.firstEntry().getValue();
+    }
+
+    // Posición de un nodo virtual: MD5 solo se calcula al construir el anillo
+    private static int hashDe(String texto) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(texto.getBytes(StandardCharsets.UTF_8));
+            return (d[0] & 0xff) << 24 | (d[1] & 0xff) << 16 | (d[2] & 0xff) << 8 | (d[3] & 0xff);
+        } catch (NoSuchAlgorithmException e) {
+            // Todas las JVM deben incluir MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Posición de un id: mezcla de bits (la de MurmurHash3) para que los ids consecutivos se repartan
+    private static int mezclar(int id) {
+        int h = id;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -3,6 +3,7 @@ package org.example.common;
 import java.io.Serial;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.List;
 
 /**
  * La clase Message representa la unidad básica de comunicación
@@ -30,17 +31,32 @@ public class Message implements Serializable {
      * o el tipo de respuesta enviada por el servidor.
      */
     public enum Type {
+        HELLO,          // Negociación de la conexión (compresión)
         LIST,           // Solicitar listado de tareas
         FILTER,         // Solicitar filtrado de tareas
+        SEARCH,         // Buscar tareas por texto en su descripción
+        STATS,          // Solicitar contadores agregados de las tareas (TaskStats)
         CREATE,         // Crear una nueva tarea
         DELETE,         // Eliminar una tarea por su id
         UPLOAD_FILE,    // Subir un archivo asociado a una tarea
         DOWNLOAD_FILE,  // Descargar un archivo asociado a una tarea
         CHANGE_STATE,   // Cambiar el estado de una tarea (completada / no completada)
+        SUBSCRIBE,      // Suscribirse a los avisos de vencimiento de tareas
+        REPLICATE,      // Una réplica pide (y después recibe) los cambios del primario
+        PROMOTE,        // Convierte una réplica en primario
+        EVENT,          // Aviso enviado por el servidor a los clientes suscritos
         RESPONSE,       // Respuesta genérica del servidor
         ERROR,          // Mensaje de error
         CLOSE           // Cierre de la conexión cliente-servidor
     }
+    /**
+     * Tipos de aviso que el servidor envía en los mensajes EVENT.
+     */
+    public enum Event {
+        DUE_SOON,       // La tarea vence en breve
+        OVERDUE         // La tarea ha vencido sin completarse
+    }
+
     /**
      * Indica el tipo concreto del mensaje.
      * Es el primer campo que el servidor analiza
@@ -84,12 +100,67 @@ public class Message implements Serializable {
      * Se utiliza para filtrar tareas por fecha.
      */
     private Date maxDueDate;
+    /**
+     * Consulta completa: combinación AND / OR de predicados, orden y límite.
+     * Si se informa, sustituye a los tres filtros anteriores.
+     */
+    private TaskQuery filterQuery;
+    /**
+     * Texto a buscar en las descripciones de las tareas.
+     * Se utiliza en operaciones de tipo SEARCH, que también
+     * aplican los filtros anteriores si vienen informados.
+     */
+    private String query;
+    /**
+     * Incluye también las tareas archivadas (LIST, FILTER y SEARCH).
+     * Son más lentas de consultar porque se leen del disco.
+     */
+    private boolean includeArchived;
+
+    /* ---------- Control de versiones ---------- */
+    /**
+     * Versión de la tarea sobre la que el cliente hace el cambio (CHANGE_STATE, DELETE).
+     * Si la tarea ya está en otra versión, el servidor no la cambia y responde
+     * con un ERROR marcado como conflict que incluye la tarea actual.
+     * Si es null, el cambio se aplica sobre la versión que haya.
+     */
+    private Long expectedVersion;
+    /**
+     * Indica que un ERROR se debe a un conflicto de versiones.
+     */
+    private boolean conflict;
 
     /* ---------- Transferencia de archivos ------- */
     /**
      * Nombre del archivo que se va a subir o descargar.
      */
     private String fileName;
+    /**
+     * Hash SHA-256 (en hexadecimal) del contenido del archivo a subir.
+     * Si se indica en el primer mensaje de UPLOAD_FILE, el servidor responde
+     * antes de recibir bloques y puede evitar la transferencia (ver skipTransfer).
+     */
+    private String contentHash;
+    /**
+     * Respuesta al primer mensaje de UPLOAD_FILE con contentHash:
+     * true si el servidor ya tenía ese contenido y no hay que enviar los bloques.
+     */
+    private boolean skipTransfer;
+    /**
+     * Primer byte del archivo que se quiere descargar (DOWNLOAD_FILE).
+     * Si es null se descarga desde el principio.
+     */
+    private Long offset;
+    /**
+     * Número máximo de bytes que se quieren descargar a partir de offset.
+     * Si es null se descarga hasta el final del archivo.
+     */
+    private Long length;
+    /**
+     * Tamaño total del archivo en el servidor.
+     * Viaja en el mensaje final de una descarga para poder reanudarla o repartirla en rangos.
+     */
+    private Long fileSize;
     /**
      * Bloque de datos del archivo.
      * Se envía en fragmentos para permitir archivos grandes.
@@ -102,6 +173,25 @@ public class Message implements Serializable {
      */
     private boolean lastBlock;
 
+    /**
+     * Indica que dataBlock viaja comprimido con el códec acordado en HELLO.
+     * Todos los bloques de una misma transferencia forman un único flujo comprimido.
+     */
+    private boolean compressed;
+
+    /* ---------- Compresión ---------- */
+
+    /**
+     * Códecs que soporta el cliente, en orden de preferencia (HELLO).
+     */
+    private List<String> codecs;
+
+    /**
+     * Códec elegido por el servidor en la respuesta a HELLO (null = sin compresión),
+     * o códec con el que se ha comprimido compressedResult.
+     */
+    private String codec;
+
     /* ---------- Respuestas del servidor ---------- */
 
     /**
@@ -109,16 +199,62 @@ public class Message implements Serializable {
      * Puede contener:
      *  - List<Task>
      *  - Task
+     *  - TaskStats
      *  - Boolean
      *  - null (si no hay datos que devolver)
      */
     private Object result;
 
+    /**
+     * Resultado serializado y comprimido.
+     * Sustituye a result cuando la respuesta es grande y la conexión usa compresión
+     * (ver Compression.resultadoDe).
+     */
+    private byte[] compressedResult;
+
     /**
      * Mensaje de error enviado por el servidor en caso de fallo.
      */
     private String errorMessage;
 
+    /**
+     * Tipo de aviso en los mensajes EVENT.
+     * La tarea afectada se envía en el campo task.
+     */
+    private Event event;
+
+    /* ---------- Replicación ---------- */
+
+    /**
+     * Desfase máximo (en milisegundos) que el cliente acepta al leer de una réplica.
+     * Si la réplica va más retrasada, responde con un ERROR y el cliente puede leer del primario.
+     */
+    private Long maxStalenessMs;
+    /**
+     * Identificador del registro de cambios del primario (REPLICATE).
+     * Cambia cada vez que arranca un primario: si no coincide con el que conoce
+     * la réplica, esta recibe una copia completa.
+     */
+    private Long replicationEpoch;
+    /**
+     * Último cambio aplicado por la réplica (petición REPLICATE).
+     */
+    private Long replicationSeq;
+    /**
+     * Cambio enviado por el primario a una réplica.
+     */
+    private ReplicationEntry replicationEntry;
+
+    /* ---------- Diagnóstico ---------- */
+
+    /**
+     * Identificador de la petición elegido por el cliente.
+     * El servidor lo anota en sus eventos de JDK Flight Recorder, de modo que la
+     * latencia que mide el cliente se puede cruzar con las fases de la petición en el servidor.
+     * Si es null, el servidor asigna uno propio.
+     */
+    private String traceId;
+
    /* =========================
        Constructores
        ========================= */
@@ -182,6 +318,38 @@ public class Message implements Serializable {
         this.maxDueDate = maxDueDate;
     }
 
+    public TaskQuery getFilterQuery() {
+        return filterQuery;
+    }
+
+    public void setFilterQuery(TaskQuery filterQuery) {
+        this.filterQuery = filterQuery;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    public Long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    public void setExpectedVersion(Long expectedVersion) {
+        this.expectedVersion = expectedVersion;
+    }
+
+    public boolean isConflict() {
+        return conflict;
+    }
+
+    public void setConflict(boolean conflict) {
+        this.conflict = conflict;
+    }
+
     public String getFileName() {
         return fileName;
     }
@@ -190,6 +358,46 @@ public class Message implements Serializable {
         this.fileName = fileName;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public boolean isSkipTransfer() {
+        return skipTransfer;
+    }
+
+    public void setSkipTransfer(boolean skipTransfer) {
+        this.skipTransfer = skipTransfer;
+    }
+
+    public Long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(Long offset) {
+        this.offset = offset;
+    }
+
+    public Long getLength() {
+        return length;
+    }
+
+    public void setLength(Long length) {
+        this.length = length;
+    }
+
+    public Long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(Long fileSize) {
+        this.fileSize = fileSize;
+    }
+
     public byte[] getDataBlock() {
         return dataBlock;
     }
@@ -206,6 +414,30 @@ public class Message implements Serializable {
         this.lastBlock = lastBlock;
     }
 
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public List<String> getCodecs() {
+        return codecs;
+    }
+
+    public void setCodecs(List<String> codecs) {
+        this.codecs = codecs;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
     public Object getResult() {
         return result;
     }
@@ -214,6 +446,14 @@ public class Message implements Serializable {
         this.result = result;
     }
 
+    public byte[] getCompressedResult() {
+        return compressedResult;
+    }
+
+    public void setCompressedResult(byte[] compressedResult) {
+        this.compressedResult = compressedResult;
+    }
+
     public String getErrorMessage() {
         return errorMessage;
     }
@@ -221,4 +461,60 @@ public class Message implements Serializable {
     public void setErrorMessage(String errorMessage) {
         this.errorMessage = errorMessage;
     }
+
+    public Event getEvent() {
+        return event;
+    }
+
+    public void setEvent(Event event) {
+        this.event = event;
+    }
+
+    public Long getMaxStalenessMs() {
+        return maxStalenessMs;
+    }
+
+    public void setMaxStalenessMs(Long maxStalenessMs) {
+        this.maxStalenessMs = maxStalenessMs;
+    }
+
+    public Long getReplicationEpoch() {
+        return replicationEpoch;
+    }
+
+    public void setReplicationEpoch(Long replicationEpoch) {
+        this.replicationEpoch = replicationEpoch;
+    }
+
+    public Long getReplicationSeq() {
+        return replicationSeq;
+    }
+
+    public void setReplicationSeq(Long replicationSeq) {
+        this.replicationSeq = replicationSeq;
+    }
+
+    public ReplicationEntry getReplicationEntry() {
+        return replicationEntry;
+    }
+
+    public void setReplicationEntry(ReplicationEntry replicationEntry) {
+        this.replicationEntry = replicationEntry;
+    }
+
+    public boolean isIncludeArchived() {
+        return includeArchived;
+    }
+
+    public void setIncludeArchived(boolean includeArchived) {
+        this.includeArchived = includeArchived;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public void setTraceId(String traceId) {
+        this.traceId = traceId;
+    }
 }
@@ -0,0 +1,48 @@
+package org.example.common;
+
+import java.io.Serializable;
+
+/**
+ * Cambio del registro de replicación que el primario envía a sus réplicas.
+ * Los cambios se numeran de forma consecutiva y la réplica los aplica en ese orden.
+ *
+ * @param seq       Número del cambio en el registro del primario
+ * @param tipo      Qué ha cambiado
+ * @param task      Tarea tal y como ha quedado (PUT, ARCHIVE)
+ * @param taskId    Tarea afectada (PUT, DELETE y ATTACH)
+ * @param hash      Hash del contenido del adjunto (ATTACH)
+ * @param extension Extensión del archivo original del adjunto (ATTACH)
+ */
+public record ReplicationEntry(long seq, Tipo tipo, Task task, int taskId,
+                               String hash, String extension) implements Serializable {
+
+    public enum Tipo {
+        PUT,            // Tarea creada o cambiada
+        DELETE,         // Tarea borrada
+        ATTACH,         // Adjunto asignado a una tarea (le siguen los bloques del archivo)
+        ARCHIVE,        // Tarea pasada al archivo (sale de las tareas en memoria)
+        SNAPSHOT_START, // Empieza una copia completa: la réplica descarta lo que tenía
+        SNAPSHOT_END,   // Termina la copia completa
+        HEARTBEAT       // Sin cambios nuevos: la réplica está al día hasta seq
+    }
+
+    public static ReplicationEntry put(long seq, Task task) {
+        return new ReplicationEntry(seq, Tipo.PUT, task, task.getId(), null, null);
+    }
+
+    public static ReplicationEntry archive(long seq, Task task) {
+        return new ReplicationEntry(seq, Tipo.ARCHIVE, task, task.getId(), null, null);
+    }
+
+    public static ReplicationEntry delete(long seq, int taskId) {
+        return new ReplicationEntry(seq, Tipo.DELETE, null, taskId, null, null);
+    }
+
+    public static ReplicationEntry attach(long seq, int taskId, String hash, String extension) {
+        return new ReplicationEntry(seq, Tipo.ATTACH, null, taskId, hash, extension);
+    }
+
+    public static ReplicationEntry control(long seq, Tipo tipo) {
+        return new ReplicationEntry(seq, tipo, null, 0, null, null);
+    }
+}
@@ -3,24 +3,36 @@ package org.example.common;
 import java.io.Serializable;
 import java.util.Date; //Necesario para usar la clase Date que pide en las especificaciones
 
+// Las tareas son inmutables: cada cambio crea una tarea nueva con la versión siguiente,
+// de modo que una tarea se puede compartir entre hilos sin cerrojos y el servidor puede
+// rechazar un cambio hecho sobre una versión que ya no es la actual
 public class Task implements Serializable {
 
-    private int id;                      // Identificador unico (asignado por el servidor)
-    private String descripcion;          // Breve descripcion de la tarea
-    private Date fechaVencimiento;       // Fecha y hora límite
-    private int prioridad;               // 1=Alta, 2=Media, 3=Baja
-    private boolean completada;          // Estado de la tarea
-    private boolean tieneFichero;        // ¿Tiene archivo adjunto?
+    private final int id;                      // Identificador unico (asignado por el servidor)
+    private final String descripcion;          // Breve descripcion de la tarea
+    private final Date fechaVencimiento;       // Fecha y hora límite
+    private final int prioridad;               // 1=Alta, 2=Media, 3=Baja
+    private final boolean completada;          // Estado de la tarea
+    private final boolean tieneFichero;        // ¿Tiene archivo adjunto?
+    private final long version;                // Aumenta con cada cambio de la tarea
 
     // Constructor de la clase
     public Task(int id, String descripcion, Date fechaVencimiento, int prioridad) {
+        this(id, descripcion, fechaVencimiento, prioridad, false, false, 1);
+    } // Los atributos booleanos no se incluyen en el constructor y se inicializan a false por defecto
+
+    // Constructor con todos los atributos (para reconstruir una tarea guardada)
+    public Task(int id, String descripcion, Date fechaVencimiento, int prioridad,
+                boolean completada, boolean tieneFichero, long version) {
         this.id = id;
         this.descripcion = descripcion;
-        this.fechaVencimiento = fechaVencimiento;
+        // Copia para que nadie pueda cambiar la fecha desde fuera
+        this.fechaVencimiento = fechaVencimiento == null ? null : new Date(fechaVencimiento.getTime());
         this.prioridad = prioridad;
-        this.completada = false; 
-        this.tieneFichero = false;
-    } // Los atributos booleanos no se incluyen en el constructor y se inicializan a false por defecto
+        this.completada = completada;
+        this.tieneFichero = tieneFichero;
+        this.version = version;
+    }
 
     // Getters
     public int getId() {
@@ -32,7 +44,12 @@ public class Task implements Serializable {
     }
 
     public Date getFechaVencimiento() {
-        return fechaVencimiento;
+        return fechaVencimiento == null ? null : new Date(fechaVencimiento.getTime());
+    }
+
+    // Fecha de vencimiento en milisegundos, sin crear un Date (null si no tiene)
+    public Long getVencimientoMillis() {
+        return fechaVencimiento == null ? null : fechaVencimiento.getTime();
     }
 
     public int getPrioridad() {
@@ -47,20 +64,24 @@ public class Task implements Serializable {
         return tieneFichero;
     }
 
-    // Setters
-    public void setCompletada(boolean completada) {
-        this.completada = completada;
+    public long getVersion() {
+        return version;
     }
 
-    public void setTieneFichero(boolean tieneFichero) {
-        this.tieneFichero = tieneFichero;
+    // Copias con un cambio (sustituyen a los antiguos setters)
+    public Task conCompletada(boolean completada) {
+        return new Task(id, descripcion, fechaVencimiento, prioridad, completada, tieneFichero, version + 1);
+    }
+
+    public Task conFichero(boolean tieneFichero) {
+        return new Task(id, descripcion, fechaVencimiento, prioridad, completada, tieneFichero, version + 1);
     }
 
     //toString para mostrar la informacion de la tarea
     @Override
     public String toString() {
         return "ID: " + id + ", Descripcion: " + descripcion + ", Prioridad: " + prioridad +
-               ", Vence: " + fechaVencimiento + ", Completada: " + completada + ", Fichero: " + tieneFichero;
+               ", Vence: " + fechaVencimiento + ", Completada: " + completada + ", Fichero: " + tieneFichero + ", Versión: " + version;
     }
 }
 
@@ -0,0 +1,241 @@
+package org.example.common;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * La clase TaskQuery describe una consulta de tareas de tipo FILTER o SEARCH.
+ *
+ * Se compone de:
+ *  - Una condición (where), que puede combinar predicados con AND / OR
+ *  - Un criterio de ordenación opcional (por fecha de vencimiento o prioridad)
+ *  - Un límite opcional de resultados (top-K)
+ *
+ * Viaja dentro de Message, por lo que todas sus partes son Serializable.
+ */
+public class TaskQuery implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    /* =========================
+       Condiciones
+       ========================= */
+
+    /**
+     * Predicado sobre una tarea.
+     */
+    public sealed interface Condition extends Serializable
+            permits And, Or, Completed, Priority, DueBetween, HasFile {
+
+        boolean test(Task task);
+    }
+
+    /** Se cumplen todas las condiciones (una lista vacía acepta cualquier tarea). */
+    public record And(List<Condition> conditions) implements Condition {
+        public boolean test(Task task) {
+            for (Condition c : conditions) {
+                if (!c.test(task)) return false;
+            }
+            return true;
+        }
+    }
+
+    /** Se cumple alguna de las condiciones. */
+    public record Or(List<Condition> conditions) implements Condition {
+        public boolean test(Task task) {
+            for (Condition c : conditions) {
+                if (c.test(task)) return true;
+            }
+            return false;
+        }
+    }
+
+    /** La tarea está (o no) completada. */
+    public record Completed(boolean value) implements Condition {
+        public boolean test(Task task) {
+            return task.isCompletada() == value;
+        }
+    }
+
+    /** La tarea tiene la prioridad indicada (1=Alta, 2=Media, 3=Baja). */
+    public record Priority(int value) implements Condition {
+        public boolean test(Task task) {
+            return task.getPrioridad() == value;
+        }
+    }
+
+    /**
+     * La fecha de vencimiento está en el rango [from, to].
+     * Cualquiera de los dos extremos puede ser null para dejar el rango abierto.
+     */
+    public record DueBetween(Date from, Date to) implements Condition {
+        public boolean test(Task task) {
+            Long due = task.getVencimientoMillis();
+            if (due == null) return false;
+            if (from != null && due < from.getTime()) return false;
+            return to == null || due <= to.getTime();
+        }
+    }
+
+    /** La tarea tiene (o no) un archivo adjunto. */
+    public record HasFile(boolean value) implements Condition {
+        public boolean test(Task task) {
+            return task.isTieneFichero() == value;
+        }
+    }
+
+    /* =========================
+       Ordenación y límite
+       ========================= */
+
+    public enum SortField {
+        DUE_DATE,       // Por fecha de vencimiento
+        PRIORITY        // Por prioridad (y a igual prioridad, por fecha de vencimiento)
+    }
+
+    private Condition where = new And(List.of());
+    private SortField sortBy;
+    private boolean descending;
+    private Integer limit;
+
+    public TaskQuery() {
+    }
+
+    public TaskQuery(Condition where) {
+        this.where = where;
+    }
+
+    /**
+     * Orden en que se deben devolver las tareas, o null si no se pide ordenación.
+     * Las tareas con el mismo valor se ordenan por id para que el resultado sea estable.
+     */
+    public Comparator<Task> comparator() {
+        if (sortBy == null) {
+            return null;
+        }
+        Comparator<Task> porFecha = Comparator.comparing(Task::getVencimientoMillis,
+                Comparator.nullsLast(Comparator.naturalOrder()));
+        Comparator<Task> orden = switch (sortBy) {
+            case DUE_DATE -> porFecha;
+            case PRIORITY -> Comparator.comparingInt(Task::getPrioridad).thenComparing(porFecha);
+        };
+        if (descending) {
+            orden = orden.reversed();
+        }
+        return orden.thenComparingInt(Task::getId);
+    }
+
+    /**
+     * Aplica la condición, el orden y el límite de la consulta a una secuencia de tareas.
+     * Sin orden se respeta el de la secuencia (por ejemplo, la relevancia de una búsqueda)
+     * y se deja de recorrer en cuanto se alcanza el límite.
+     * Lo usan el servidor y el proxy (para unir los resultados de varios servidores).
+     */
+    public List<Task> seleccionar(Iterable<Task> tareas) {
+        Comparator<Task> orden = comparator();
+        List<Task> resultado = new ArrayList<>();
+
+        if (limit != null && limit <= 0) {
+            return resultado;
+        }
+
+        if (orden == null) {
+            for (Task task : tareas) {
+                if (where.test(task)) {
+                    resultado.add(task);
+                    if (limit != null && resultado.size() >= limit) break;
+                }
+            }
+            return resultado;
+        }
+
+        if (limit == null) {
+            for (Task task : tareas) {
+                if (where.test(task)) resultado.add(task);
+            }
+            resultado.sort(orden);
+            return resultado;
+        }
+
+        // Top-K: el montículo guarda los K mejores con el peor en la cima
+        // (el límite lo envía el cliente: no se usa como capacidad inicial)
+        PriorityQueue<Task> mejores = new PriorityQueue<>(orden.reversed());
+        for (Task task : tareas) {
+            if (!where.test(task)) continue;
+            if (mejores.size() < limit) {
+                mejores.add(task);
+            } else if (orden.compare(task, mejores.peek()) < 0) {
+                mejores.poll();
+                mejores.add(task);
+            }
+        }
+        resultado.addAll(mejores);
+        resultado.sort(orden);
+        return resultado;
+    }
+
+    /**
+     * Construye la consulta de un mensaje FILTER o SEARCH.
+     * Los clientes antiguos solo envían los campos completed, priority y maxDueDate,
+     * que se traducen a un AND de sus predicados equivalentes.
+     */
+    public static TaskQuery consultaDe(Message request) {
+        if (request.getFilterQuery() != null) {
+            return request.getFilterQuery();
+        }
+
+        List<Condition> condiciones = new ArrayList<>();
+        if (request.isCompleted() != null) {
+            condiciones.add(new Completed(request.isCompleted()));
+        }
+        if (request.getPriority() != null) {
+            condiciones.add(new Priority(request.getPriority()));
+        }
+        if (request.getMaxDueDate() != null) {
+            condiciones.add(new DueBetween(null, request.getMaxDueDate()));
+        }
+        return new TaskQuery(new And(condiciones));
+    }
+
+    /* =========================
+       Getters and setters
+       ========================= */
+
+    public Condition getWhere() {
+        return where;
+    }
+
+    public void setWhere(Condition where) {
+        this.where = where;
+    }
+
+    public SortField getSortBy() {
+        return sortBy;
+    }
+
+    public void setSortBy(SortField sortBy) {
+        this.sortBy = sortBy;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public void setDescending(boolean descending) {
+        this.descending = descending;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+}
@@ -0,0 +1,38 @@
+package org.example.common;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Contadores agregados de las tareas del servidor.
+ * Es la respuesta a una petición STATS: el servidor los mantiene al día
+ * en cada modificación, así que el cliente no necesita descargar la lista
+ * completa de tareas para mostrarlos.
+ *
+ * @param total             Número total de tareas
+ * @param pending           Tareas no completadas
+ * @param completed         Tareas completadas
+ * @param pendingByPriority Tareas no completadas por prioridad (1=Alta, 2=Media, 3=Baja)
+ * @param overdue           Tareas no completadas cuya fecha de vencimiento ya ha pasado
+ * @param withFile          Tareas con archivo adjunto
+ */
+public record TaskStats(long total, long pending, long completed, Map<Integer, Long> pendingByPriority,
+                        long overdue, long withFile) implements Serializable {
+
+    /**
+     * Suma los contadores de dos servidores (para unir los de varias particiones).
+     */
+    public TaskStats sumar(TaskStats otros) {
+        Map<Integer, Long> porPrioridad = new TreeMap<>(pendingByPriority);
+        otros.pendingByPriority.forEach((prioridad, n) -> porPrioridad.merge(prioridad, n, Long::sum));
+        return new TaskStats(total + otros.total, pending + otros.pending, completed + otros.completed,
+                porPrioridad, overdue + otros.overdue, withFile + otros.withFile);
+    }
+
+    @Override
+    public String toString() {
+        return "Total: " + total + ", Pendientes: " + pending + " " + pendingByPriority +
+               ", Completadas: " + completed + ", Vencidas: " + overdue + ", Con fichero: " + withFile;
+    }
+}
@@ -0,0 +1,429 @@
+package org.example.proxy;
+
+import org.example.common.Compression;
+import org.example.common.ConsistentHashRing;
+import org.example.common.Message;
+import org.example.common.Message.Type;
+import org.example.common.Task;
+import org.example.common.TaskQuery;
+import org.example.common.TaskStats;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.*;
+
+/**
+ * Clase ProxyHandler
+ *
+ * Atiende a UN cliente del ShardProxy: lee sus peticiones, las envía al servidor
+ * o servidores que corresponda y le devuelve las respuestas, de forma que para
+ * el cliente el grupo de servidores se comporta como uno solo.
+ */
+class ProxyHandler implements Runnable {
+
+    // Tiempo máximo que una conexión puede estar sin enviar peticiones (el mismo que en el Server)
+    private static final long TIEMPO_INACTIVIDAD_MS = Long.getLong("tareas.inactividadMs", 5 * 60 * 1000L);
+
+    private final Socket socket;
+    private final ConsistentHashRing anillo;
+
+    private ObjectInputStream in;
+    private ObjectOutputStream out;
+
+    // Códec acordado con el cliente (null = sin compresión)
+    private String codec;
+
+    // Conexión con cada servidor, abierta la primera vez que se necesita
+    private final Map<String, ShardConnection> conexiones = new HashMap<>();
+
+    // Conexiones dedicadas a los avisos, si el cliente se ha suscrito
+    private final List<ShardConnection> suscripciones = new ArrayList<>();
+
+    ProxyHandler(Socket socket, ConsistentHashRing anillo) {
+        this.socket = socket;
+        this.anillo = anillo;
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setSoTimeout((int) TIEMPO_INACTIVIDAD_MS);
+            socket.setTcpNoDelay(true);
+            out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            out.flush();
+            in = new ObjectInputStream(socket.getInputStream());
+
+            boolean connected = true;
+            while (connected) {
+                Message request = (Message) in.readObject();
+                try {
+                    switch (request.getType()) {
+                        case HELLO -> handleHello(request);
+                        case LIST, FILTER, SEARCH -> handleListas(request);
+                        case STATS -> handleStats(request);
+                        case CREATE -> reenviar(conexion(ShardProxy.siguienteNodoCreacion(anillo)), request);
+                        case DELETE, CHANGE_STATE -> {
+                            ShardConnection shard = conexionDeTarea(request);
+                            if (shard != null) reenviar(shard, request);
+                        }
+                        case UPLOAD_FILE -> handleUploadFile(request);
+                        case DOWNLOAD_FILE -> handleDownloadFile(request);
+                        case SUBSCRIBE -> handleSubscribe();
+                        case CLOSE -> connected = false;
+                        default -> sendError("Tipo de petición desconocida");
+                    }
+                } catch (ShardException e) {
+                    // Se descarta la conexión con ese servidor; se volverá a abrir en la siguiente petición
+                    System.out.println(e.getMessage());
+                    ShardConnection caida = conexiones.remove(e.getNodo());
+                    if (caida != null) {
+                        caida.close();
+                    }
+                    sendError(e.getMessage());
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            System.out.println("Cliente inactivo, se cierra la conexión");
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Cliente desconectado");
+        } finally {
+            conexiones.values().forEach(ShardConnection::close);
+            suscripciones.forEach(ShardConnection::close);
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /* =========================
+       Peticiones
+       ========================= */
+
+    // Negocia la compresión con el cliente; las conexiones con los servidores usarán el mismo códec
+    private void handleHello(Message request) throws IOException {
+        codec = null;
+        if (request.getCodecs() != null && request.getCodecs().contains(Compression.DEFLATE)) {
+            codec = Compression.DEFLATE;
+        }
+        conexiones.values().forEach(ShardConnection::close);
+        conexiones.clear();
+
+        Message response = new Message(Type.RESPONSE);
+        response.setCodec(codec);
+        send(response);
+    }
+
+    /**
+     * LIST, FILTER y SEARCH: se piden a todos los servidores y se unen las listas.
+     * Cada servidor ya aplica la consulta (filtro, orden y límite) a sus tareas;
+     * al unir se vuelve a aplicar para quedarse con el orden y el límite globales.
+     */
+    private void handleListas(Message request) throws IOException {
+        List<Message> respuestas = difundir(request);
+        Message error = primerError(respuestas);
+        if (error != null) {
+            send(error);
+            return;
+        }
+
+        List<List<Task>> listas = new ArrayList<>();
+        for (Message respuesta : respuestas) {
+            listas.add(tareasDe(respuesta));
+        }
+
+        List<Task> unidas;
+        if (request.getType() == Type.LIST) {
+            unidas = new ArrayList<>();
+            listas.forEach(unidas::addAll);
+            unidas.sort(Comparator.comparingInt(Task::getId));
+        } else if (request.getType() == Type.SEARCH) {
+            // La relevancia de cada servidor no es comparable con la de otro:
+            // se intercalan los resultados para que los mejores de cada uno queden arriba
+            unidas = TaskQuery.consultaDe(request).seleccionar(intercalar(listas));
+        } else {
+            List<Task> todas = new ArrayList<>();
+            listas.forEach(todas::addAll);
+            unidas = TaskQuery.consultaDe(request).seleccionar(todas);
+        }
+
+        Message response = new Message(Type.RESPONSE);
+        response.setResult(unidas);
+        if (codec != null) {
+            Compression.comprimirResultado(response, null);
+        }
+        send(response);
+    }
+
+    // STATS: se suman los contadores de todos los servidores
+    private void handleStats(Message request) throws IOException {
+        List<Message> respuestas = difundir(request);
+        Message error = primerError(respuestas);
+        if (error != null) {
+            send(error);
+            return;
+        }
+
+        TaskStats total = null;
+        for (Message respuesta : respuestas) {
+            TaskStats stats = (TaskStats) respuesta.getResult();
+            total = total == null ? stats : total.sumar(stats);
+        }
+        Message response = new Message(Type.RESPONSE);
+        response.setResult(total);
+        send(response);
+    }
+
+    /**
+     * Subida: se reenvía el mensaje inicial al dueño de la tarea y, si el servidor
+     * acepta la transferencia, los bloques del cliente hasta el último.
+     */
+    private void handleUploadFile(Message request) throws IOException, ClassNotFoundException {
+        ShardConnection shard = conexionDeTarea(request);
+        if (shard == null) {
+            return;
+        }
+        shard.enviar(request);
+
+        // Con hash, el servidor decide antes de recibir bloques si hace falta la transferencia
+        if (request.getContentHash() != null) {
+            Message decision = shard.recibir();
+            send(decision);
+            if (decision.getType() == Type.ERROR || decision.isSkipTransfer()) {
+                return;
+            }
+        }
+
+        // Los bloques se acumulan en el buffer y salen hacia el servidor en escrituras grandes
+        while (true) {
+            Message block = (Message) in.readObject();
+            shard.escribir(block);
+            if (block.isLastBlock()) break;
+        }
+        shard.vaciar();
+
+        send(shard.recibir());
+    }
+
+    // Descarga: se reenvían los bloques del servidor dueño hasta el último (o un error)
+    private void handleDownloadFile(Message request) throws IOException {
+        ShardConnection shard = conexionDeTarea(request);
+        if (shard == null) {
+            return;
+        }
+        shard.enviar(request);
+
+        synchronized (out) {
+            boolean empezada = false;
+            while (true) {
+                Message block;
+                try {
+                    block = shard.recibir();
+                } catch (ShardException e) {
+                    if (!empezada) {
+                        throw e;
+                    }
+                    // Con parte del archivo ya enviada, el cliente no espera un ERROR entre los bloques:
+                    // se cierra su conexión para que no se quede esperando el resto
+                    System.out.println(e.getMessage() + " a mitad de una descarga; se cierra la conexión con el cliente");
+                    throw new IOException(e.getMessage(), e);
+                }
+                out.writeObject(block);
+                out.reset();
+                empezada = true;
+                if (block.isLastBlock() || block.getType() == Type.ERROR) break;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Suscripción: se abre una conexión de avisos con cada servidor y un hilo por
+     * servidor reenvía sus avisos al cliente.
+     */
+    private void handleSubscribe() throws IOException {
+        if (!suscripciones.isEmpty()) {
+            send(respuestaOk());
+            return;
+        }
+        try {
+            for (String nodo : anillo.getNodos()) {
+                ShardConnection avisos = abrir(nodo);
+                suscripciones.add(avisos);
+                avisos.enviar(new Message(Type.SUBSCRIBE));
+                avisos.recibir();
+            }
+        } catch (ShardException e) {
+            // O se reciben los avisos de todos los servidores o de ninguno
+            suscripciones.forEach(ShardConnection::close);
+            suscripciones.clear();
+            throw e;
+        }
+        // Esta conexión ya solo recibe avisos: no se cierra por inactividad
+        socket.setSoTimeout(0);
+
+        for (ShardConnection avisos : suscripciones) {
+            Thread hilo = new Thread(() -> {
+                try {
+                    while (true) {
+                        Message evento = avisos.recibir();
+                        if (evento.getType() == Type.EVENT) {
+                            send(evento);
+                        }
+                    }
+                } catch (IOException e) {
+                    // El servidor o el cliente han cerrado la conexión
+                }
+            }, "avisos-" + avisos.getNodo());
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+        send(respuestaOk());
+    }
+
+    /* =========================
+       Métodos auxiliares
+       ========================= */
+
+    // Reenvía una petición con una sola respuesta y devuelve la respuesta al cliente
+    private void reenviar(ShardConnection shard, Message request) throws IOException {
+        shard.enviar(request);
+        send(shard.recibir());
+    }
+
+    /**
+     * Envía la petición a todos los servidores y después recoge las respuestas,
+     * de forma que todos la procesan a la vez.
+     * Son lecturas: si falla una conexión que ya estaba abierta (el servidor puede
+     * haberla cerrado sin que se note hasta usarla), se vuelve a intentar una vez
+     * con conexiones nuevas.
+     */
+    private List<Message> difundir(Message request) throws IOException {
+        Set<String> reutilizadas = new HashSet<>(conexiones.keySet());
+        try {
+            return difundirUnaVez(request);
+        } catch (ShardException e) {
+            if (!reutilizadas.contains(e.getNodo())) {
+                throw e;
+            }
+            System.out.println(e.getMessage() + "; se reintenta con una conexión nueva");
+            return difundirUnaVez(request);
+        }
+    }
+
+    private List<Message> difundirUnaVez(Message request) throws ShardException {
+        List<ShardConnection> shards = new ArrayList<>();
+        try {
+            for (String nodo : anillo.getNodos()) {
+                ShardConnection shard = conexion(nodo);
+                shards.add(shard);
+                shard.enviar(request);
+            }
+            List<Message> respuestas = new ArrayList<>();
+            for (ShardConnection shard : shards) {
+                respuestas.add(shard.recibir());
+            }
+            return respuestas;
+        } catch (ShardException e) {
+            // Los demás servidores pueden tener respuestas sin leer: se cierran sus conexiones
+            for (ShardConnection shard : shards) {
+                conexiones.remove(shard.getNodo());
+                shard.close();
+            }
+            throw e;
+        }
+    }
+
+    private static Message primerError(List<Message> respuestas) {
+        for (Message respuesta : respuestas) {
+            if (respuesta.getType() == Type.ERROR) {
+                return respuesta;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Task> tareasDe(Message respuesta) throws IOException {
+        try {
+            Object resultado = Compression.resultadoDe(respuesta);
+            return resultado instanceof List<?> ? (List<Task>) resultado : List.of();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Respuesta no válida", e);
+        }
+    }
+
+    // Une varias listas tomando un elemento de cada una por turnos
+    private static List<Task> intercalar(List<List<Task>> listas) {
+        List<Task> resultado = new ArrayList<>();
+        for (int i = 0; ; i++) {
+            boolean quedan = false;
+            for (List<Task> lista : listas) {
+                if (i < lista.size()) {
+                    resultado.add(lista.get(i));
+                    quedan = true;
+                }
+            }
+            if (!quedan) {
+                return resultado;
+            }
+        }
+    }
+
+    // Conexión con el servidor dueño de la tarea de la petición (null si no indica tarea)
+    private ShardConnection conexionDeTarea(Message request) throws IOException {
+        if (request.getTaskId() == null) {
+            sendError("Falta el id de la tarea");
+            return null;
+        }
+        return conexion(anillo.nodoDe(request.getTaskId()));
+    }
+
+    /**
+     * Conexión con un servidor, reutilizando la de peticiones anteriores.
+     * Si lleva inactiva cerca del tiempo tras el que el servidor la cierra,
+     * se abre otra en lugar de arriesgarse a usar una conexión cerrada.
+     */
+    private ShardConnection conexion(String nodo) throws ShardException {
+        ShardConnection shard = conexiones.get(nodo);
+        if (shard != null && shard.inactivaDesde() > TIEMPO_INACTIVIDAD_MS / 2) {
+            conexiones.remove(nodo);
+            shard.close();
+            shard = null;
+        }
+        if (shard == null) {
+            shard = abrir(nodo);
+            conexiones.put(nodo, shard);
+        }
+        return shard;
+    }
+
+    private ShardConnection abrir(String nodo) throws ShardException {
+        try {
+            return new ShardConnection(nodo, codec);
+        } catch (IOException e) {
+            throw new ShardException(nodo, e);
+        }
+    }
+
+    private static Message respuestaOk() {
+        Message response = new Message(Type.RESPONSE);
+        response.setResult(true);
+        return response;
+    }
+
+    private void sendError(String text) throws IOException {
+        Message error = new Message(Type.ERROR);
+        error.setErrorMessage(text);
+        send(error);
+    }
+
+    // Las escrituras se sincronizan porque los hilos de avisos también escriben en el cliente
+    private void send(Message message) throws IOException {
+        synchronized (out) {
+            out.writeObject(message);
+            out.flush();
+            out.reset();
+        }
+    }
+}
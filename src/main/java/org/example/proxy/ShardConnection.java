@@ -0,0 +1,101 @@
+package org.example.proxy;
+
+import org.example.common.Message;
+import org.example.common.Message.Type;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * Conexión del proxy con uno de los servidores.
+ * Cada cliente del proxy tiene su propia conexión con cada servidor,
+ * así que las peticiones de un cliente nunca se mezclan con las de otro.
+ */
+class ShardConnection implements Closeable {
+
+    private final String nodo;
+    private final Socket socket;
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+
+    // Última vez que se usó la conexión (el servidor cierra las que llevan mucho tiempo inactivas)
+    private long ultimoUso = System.currentTimeMillis();
+
+    /**
+     * Abre la conexión y negocia el mismo códec que el cliente ha acordado con el proxy,
+     * de modo que los bloques de archivos comprimidos pasan sin descomprimirse.
+     */
+    ShardConnection(String nodo, String codec) throws IOException {
+        this.nodo = nodo;
+        int separador = nodo.lastIndexOf(':');
+        socket = new Socket(nodo.substring(0, separador), Integer.parseInt(nodo.substring(separador + 1)));
+        socket.setTcpNoDelay(true);
+        out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        out.flush();
+        in = new ObjectInputStream(socket.getInputStream());
+
+        if (codec != null) {
+            Message hello = new Message(Type.HELLO);
+            hello.setCodecs(List.of(codec));
+            enviar(hello);
+            recibir();
+        }
+    }
+
+    String getNodo() {
+        return nodo;
+    }
+
+    // Milisegundos desde la última vez que se usó
+    long inactivaDesde() {
+        return System.currentTimeMillis() - ultimoUso;
+    }
+
+    // Envía un mensaje y lo vacía hacia el socket
+    void enviar(Message message) throws ShardException {
+        escribir(message);
+        vaciar();
+    }
+
+    // Escribe un mensaje en el buffer sin vaciarlo (para reenviar bloques seguidos)
+    void escribir(Message message) throws ShardException {
+        ultimoUso = System.currentTimeMillis();
+        try {
+            out.writeObject(message);
+            out.reset();
+        } catch (IOException e) {
+            throw new ShardException(nodo, e);
+        }
+    }
+
+    void vaciar() throws ShardException {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new ShardException(nodo, e);
+        }
+    }
+
+    Message recibir() throws ShardException {
+        ultimoUso = System.currentTimeMillis();
+        try {
+            return (Message) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new ShardException(nodo, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.writeObject(new Message(Type.CLOSE));
+            out.flush();
+        } catch (IOException ignored) {
+            // El servidor ya había cerrado la conexión
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
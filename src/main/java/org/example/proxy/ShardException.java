@@ -0,0 +1,26 @@
+package org.example.proxy;
+
+import java.io.IOException;
+import java.io.Serial;
+
+/**
+ * Error en la comunicación con uno de los servidores.
+ * Se distingue de los errores con el cliente para poder avisarle
+ * y seguir atendiéndole con el resto de servidores.
+ */
+class ShardException extends IOException {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String nodo;
+
+    ShardException(String nodo, Throwable causa) {
+        super("Servidor " + nodo + " no disponible", causa);
+        this.nodo = nodo;
+    }
+
+    String getNodo() {
+        return nodo;
+    }
+}
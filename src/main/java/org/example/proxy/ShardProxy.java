@@ -0,0 +1,76 @@
+package org.example.proxy;
+
+import org.example.common.ConsistentHashRing;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Clase ShardProxy
+ *
+ * Punto de entrada único cuando las tareas están repartidas entre varios servidores.
+ * Los clientes se conectan al proxy exactamente igual que a un Server, y el proxy
+ * envía cada petición al servidor que corresponde:
+ *  - Las peticiones sobre una tarea (DELETE, CHANGE_STATE, UPLOAD_FILE, DOWNLOAD_FILE)
+ *    van al servidor dueño de su id según el anillo de hashing consistente
+ *  - CREATE se reparte por turnos; el servidor elegido asigna un id de su partición
+ *  - LIST, FILTER, SEARCH y STATS se envían a todos y se unen las respuestas
+ *  - SUBSCRIBE se suscribe en todos y reenvía los avisos de cualquiera
+ *
+ * Para probarlo en una sola máquina, por ejemplo con tres servidores:
+ *   java -Dtareas.puerto=5051 -Dtareas.nodo=localhost:5051 -Dtareas.directorio=nodo1
+ *        -Dtareas.nodos=localhost:5051,localhost:5052,localhost:5053 org.example.server.Server
+ *   (igual para 5052 y 5053)
+ *   java -Dtareas.nodos=localhost:5051,localhost:5052,localhost:5053 org.example.proxy.ShardProxy
+ *
+ * Limitación: la lista de servidores (tareas.nodos) no se puede cambiar con datos.
+ * Al añadir o quitar un servidor, parte de los ids cambian de dueño en el anillo, pero
+ * las tareas y sus adjuntos no se mueven: siguen en el servidor antiguo y las peticiones
+ * por id que les lleguen al nuevo dueño responden que no existen (en LIST, FILTER y
+ * SEARCH sí aparecen, porque se pregunta a todos). No hay migración de los tramos
+ * afectados; para cambiar el número de servidores hay que empezar con los datos vacíos
+ * o repartir las tareas a mano antes de arrancar el proxy con la lista nueva.
+ */
+public class ShardProxy {
+
+    // Puerto en el que escucha el proxy (el mismo que usan los clientes con un único servidor)
+    private static final int PUERTO = Integer.getInteger("tareas.puerto", 5050);
+
+    // Pool de hilos para atender a los clientes
+    private static final ExecutorService pool = Executors.newCachedThreadPool();
+
+    // Turno para repartir las tareas nuevas entre los servidores
+    private static final AtomicInteger turnoCreacion = new AtomicInteger();
+
+    private static ConsistentHashRing anillo;
+
+    public static void main(String[] args) {
+        String nodos = System.getProperty("tareas.nodos");
+        if (nodos == null) {
+            System.out.println("Falta -Dtareas.nodos=host:puerto,host:puerto,...");
+            return;
+        }
+        anillo = ConsistentHashRing.deLista(nodos);
+        System.out.println("Iniciando proxy... puerto: " + PUERTO + ", servidores: " + anillo.getNodos());
+
+        try (ServerSocket serverSocket = new ServerSocket(PUERTO)) {
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                System.out.println("Cliente conectado");
+                pool.execute(new ProxyHandler(clientSocket, anillo));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Servidor en el que se crea la siguiente tarea
+    static String siguienteNodoCreacion(ConsistentHashRing anillo) {
+        int turno = Math.floorMod(turnoCreacion.getAndIncrement(), anillo.getNodos().size());
+        return anillo.getNodos().get(turno);
+    }
+}
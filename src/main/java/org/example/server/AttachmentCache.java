@@ -0,0 +1,114 @@
+package org.example.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Clase AttachmentCache
+ *
+ * Caché en memoria de los archivos adjuntos pequeños y muy descargados.
+ * Guarda la secuencia de bloques tal y como se envía al cliente (comprimida o no),
+ * de forma que las descargas repetidas no leen el disco ni vuelven a comprimir.
+ *
+ * Las entradas se guardan por hash del contenido y códec de la transferencia.
+ * Como el almacén de archivos es por contenido, un archivo guardado no cambia nunca:
+ * al volver a subir el adjunto de una tarea cambia su hash, y las entradas del
+ * contenido anterior se descartan cuando el FileManager lo borra del disco.
+ *
+ * Cuando se supera el tamaño máximo se expulsan las entradas usadas hace más tiempo.
+ */
+public class AttachmentCache {
+
+    // Tamaño máximo total de los bloques guardados
+    private static final long MAX_BYTES = Long.getLong("tareas.cacheAdjuntosBytes", 32L * 1024 * 1024);
+
+    // Solo se guardan los archivos que no superan este tamaño
+    private static final long MAX_ARCHIVO = Long.getLong("tareas.cacheAdjuntosMaxArchivo", 256L * 1024);
+
+    // Clave de una entrada: contenido y códec con el que se envían sus bloques (null = sin comprimir)
+    private record Clave(String hash, String codec) {}
+
+    // Bloques guardados, de los menos a los más usados recientemente
+    private final LinkedHashMap<Clave, List<byte[]>> entradas = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytesTotales;
+    private long aciertos;
+    private long fallos;
+    private long expulsiones;
+
+    /**
+     * Indica si un archivo de ese tamaño puede guardarse en la caché.
+     */
+    public boolean admite(long tamaño) {
+        return tamaño <= MAX_ARCHIVO && tamaño <= MAX_BYTES;
+    }
+
+    /**
+     * Devuelve los bloques guardados de un contenido, o null si no están en la caché.
+     */
+    public synchronized List<byte[]> obtener(String hash, String codec) {
+        List<byte[]> bloques = entradas.get(new Clave(hash, codec));
+        if (bloques == null) {
+            fallos++;
+        } else {
+            aciertos++;
+        }
+        return bloques;
+    }
+
+    /**
+     * Guarda los bloques de un contenido. Los arrays no deben modificarse después.
+     */
+    public synchronized void guardar(String hash, String codec, List<byte[]> bloques) {
+        long tamaño = tamañoDe(bloques);
+        if (tamaño > MAX_BYTES) {
+            return;
+        }
+        List<byte[]> anterior = entradas.put(new Clave(hash, codec), List.copyOf(bloques));
+        bytesTotales += tamaño - (anterior == null ? 0 : tamañoDe(anterior));
+        expulsar();
+    }
+
+    /**
+     * Descarta todas las entradas de un contenido (con cualquier códec).
+     * Lo llama el FileManager cuando borra el archivo del disco.
+     */
+    public synchronized void invalidar(String hash) {
+        Iterator<Map.Entry<Clave, List<byte[]>>> it = entradas.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Clave, List<byte[]>> entrada = it.next();
+            if (entrada.getKey().hash().equals(hash)) {
+                bytesTotales -= tamañoDe(entrada.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    // Quita las entradas menos usadas hasta volver al tamaño máximo
+    private void expulsar() {
+        Iterator<List<byte[]>> it = entradas.values().iterator();
+        while (bytesTotales > MAX_BYTES && it.hasNext()) {
+            bytesTotales -= tamañoDe(it.next());
+            it.remove();
+            expulsiones++;
+        }
+    }
+
+    private static long tamañoDe(List<byte[]> bloques) {
+        long total = 0;
+        for (byte[] bloque : bloques) {
+            total += bloque.length;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long peticiones = aciertos + fallos;
+        long porcentaje = peticiones == 0 ? 0 : aciertos * 100 / peticiones;
+        return String.format("%d aciertos, %d fallos (%d%% aciertos), %d expulsiones, %d entradas, %d KB",
+                aciertos, fallos, porcentaje, expulsiones, entradas.size(), bytesTotales / 1024);
+    }
+}
@@ -1,14 +1,24 @@
 package org.example.server;
 
+import org.example.common.Compression;
 import org.example.common.Message;
 import org.example.common.Message.Type;
+import org.example.common.ReplicationEntry;
+import org.example.common.ReplicationEntry.Tipo;
 import org.example.common.Task;
+import org.example.common.TaskQuery;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Clase ClientHandler
@@ -24,6 +34,48 @@ import java.util.Map;
  */
 public class ClientHandler implements Runnable {
 
+    /* =========================
+       Límites de tiempo
+       ========================= */
+
+    // Tiempo máximo que una conexión puede estar sin enviar peticiones antes de cerrarse
+    private static final long TIEMPO_INACTIVIDAD_MS = Long.getLong("tareas.inactividadMs", 5 * 60 * 1000L);
+
+    // Tiempo máximo de espera entre dos bloques de una subida de archivo
+    private static final long TIEMPO_BLOQUE_MS = Long.getLong("tareas.bloqueMs", 30 * 1000L);
+
+    // Plazo total para completar una subida, contado desde el mensaje inicial
+    private static final long PLAZO_SUBIDA_MS = Long.getLong("tareas.plazoSubidaMs", 30 * 60 * 1000L);
+
+    // Tiempo máximo que puede quedar bloqueada una escritura hacia un cliente lento
+    private static final long TIEMPO_ESCRITURA_MS = Long.getLong("tareas.escrituraMs", 30 * 1000L);
+
+    // Tamaño del buffer de salida hacia el socket
+    private static final int TAMAÑO_BUFFER_SALIDA = 64 * 1024;
+
+    // Tiempo máximo sin enviar nada a una réplica: si no hay cambios, se le envía un latido
+    private static final long LATIDO_REPLICA_MS = 500;
+
+    // Tamaño de los bloques de archivo enviados a las réplicas
+    private static final int BLOQUE_REPLICA = 64 * 1024;
+
+    // Estados del hilo, usados por el vigilante del Server para detectar conexiones colgadas
+    private enum Estado { ESPERANDO, PROCESANDO, SUBIENDO }
+
+    private volatile Estado estado = Estado.ESPERANDO;
+
+    // Momento en que se entró en el estado actual
+    private volatile long desde = System.currentTimeMillis();
+
+    // Momento límite de la subida en curso (solo válido en estado SUBIENDO)
+    private volatile long plazoSubida;
+
+    // Momento en que empezó la escritura en curso hacia el socket (0 si no se está escribiendo)
+    private volatile long inicioEscritura;
+
+    // Las conexiones suscritas a avisos solo escuchan, así que no se cierran por inactividad
+    private volatile boolean suscrito;
+
     // Socket asociado al cliente que se está atendiendo
     private Socket socket;
 
@@ -33,6 +85,26 @@ public class ClientHandler implements Runnable {
     // Flujo de salida para enviar objetos Message al cliente
     private ObjectOutputStream out;
 
+    // Flujo de bytes bajo "out", usado para enviar respuestas ya serializadas
+    private OutputStream salida;
+
+    // Códec de compresión acordado con el cliente en HELLO (null = sin compresión)
+    private String codec;
+
+    // Bytes ahorrados y CPU gastada en comprimir para este cliente
+    private final Compression.Contador compresion = new Compression.Contador();
+
+    // Para asignar traceId a las peticiones que no lo traen: número de conexión y de petición
+    private static final AtomicLong contadorConexiones = new AtomicLong();
+    private final long numeroConexion = contadorConexiones.incrementAndGet();
+    private long peticiones;
+
+    // Último error enviado en la petición en curso (para su evento de JFR)
+    private String ultimoError;
+
+    // Flujo hacia el socket, que cuenta los bytes enviados
+    private SalidaVigilada vigilada;
+
     /**
      * Constructor.
      * Recibe el socket creado por el Server al aceptar una conexión.
@@ -47,11 +119,23 @@ public class ClientHandler implements Runnable {
      */
     @Override
     public void run() {
+        Server.registrarCliente(this);
         try {
+            // Las lecturas bloqueadas terminan con SocketTimeoutException al superar el límite
+            socket.setSoTimeout((int) TIEMPO_INACTIVIDAD_MS);
+
+            // Cada mensaje se acumula en el buffer y sale al socket en una sola escritura al hacer flush,
+            // así que se desactiva Nagle para no esperar al ACK del paquete anterior
+            socket.setTcpNoDelay(true);
+            vigilada = new SalidaVigilada(socket.getOutputStream());
+            salida = new BufferedOutputStream(vigilada, TAMAÑO_BUFFER_SALIDA);
+
             // IMPORTANTE:
             // El ObjectOutputStream debe crearse antes que el ObjectInputStream
             // para evitar bloqueos durante el handshake
-            out = new ObjectOutputStream(socket.getOutputStream());
+            // (y su cabecera debe salir del buffer antes de esperar la del cliente)
+            out = new ObjectOutputStream(salida);
+            out.flush();
             in = new ObjectInputStream(socket.getInputStream());
 
             boolean connected = true;
@@ -60,100 +144,232 @@ public class ClientHandler implements Runnable {
             while (connected) {
 
                 // Se bloquea esperando un mensaje del cliente
+                cambiarEstado(Estado.ESPERANDO);
                 Message request = (Message) in.readObject();
-
-                // Se analiza el tipo de mensaje recibido
-                switch (request.getType()) {
-
-                    case LIST -> handleList();
-                    case FILTER -> handleFilter(request);
-                    case CREATE -> handleCreate(request);
-                    case DELETE -> handleDelete(request);
-                    case UPLOAD_FILE -> handleUploadFile(request);
-                    case DOWNLOAD_FILE -> handleDownloadFile(request);
-                    case CHANGE_STATE -> handleChangeState(request);
-                    case CLOSE -> connected = false; // El cliente solicita cerrar la conexión
-
-                    // Tipo de mensaje no reconocido
-                    default -> sendError("Tipo de petición desconocida");
+                cambiarEstado(Estado.PROCESANDO);
+                ServerEvents.Peticion evento = empezarPeticion(request);
+                try {
+                    // Una réplica solo atiende lecturas suficientemente recientes
+                    if (!admitidaEnReplica(request)) continue;
+
+                    // Se analiza el tipo de mensaje recibido
+                    switch (request.getType()) {
+
+                        case HELLO -> handleHello(request);
+                        case LIST -> handleList(request);
+                        case FILTER -> handleFilter(request);
+                        case SEARCH -> handleSearch(request);
+                        case STATS -> handleStats();
+                        case CREATE -> handleCreate(request);
+                        case DELETE -> handleDelete(request);
+                        case UPLOAD_FILE -> handleUploadFile(request);
+                        case DOWNLOAD_FILE -> handleDownloadFile(request);
+                        case CHANGE_STATE -> handleChangeState(request);
+                        case SUBSCRIBE -> handleSubscribe();
+                        case REPLICATE -> handleReplicate(request);
+                        case PROMOTE -> handlePromote();
+                        case CLOSE -> connected = false; // El cliente solicita cerrar la conexión
+
+                        // Tipo de mensaje no reconocido
+                        default -> sendError("Tipo de petición desconocida");
+                    }
+                } finally {
+                    terminarPeticion(evento, request);
                 }
             }
 
+        } catch (SocketTimeoutException e) {
+            // El cliente ha dejado de enviar datos durante demasiado tiempo
+            System.out.println("Cliente inactivo, se cierra la conexión");
         } catch (IOException | ClassNotFoundException e) {
             // Se produce cuando el cliente se desconecta abruptamente
             System.out.println("Cliente desconectado");
         } finally {
+            if (!compresion.isVacio()) {
+                System.out.println("Compresión del cliente: " + compresion);
+            }
             // Cierre del socket y liberación de recursos
+            Server.eliminarCliente(this);
             close();
         }
     }
 
+    /**
+     * Empieza el evento de JFR de una petición y anota su traceId para los eventos
+     * que se emitan mientras se atiende (también desde el Server y el FileManager).
+     */
+    private ServerEvents.Peticion empezarPeticion(Message request) {
+        String traza = request.getTraceId() != null ? request.getTraceId() : "s" + numeroConexion + "-" + ++peticiones;
+        ServerEvents.empezarTraza(traza);
+        ultimoError = null;
+        ServerEvents.Peticion evento = new ServerEvents.Peticion();
+        evento.begin();
+        return evento;
+    }
 
+    private void terminarPeticion(ServerEvents.Peticion evento, Message request) {
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.traceId = ServerEvents.trazaActual();
+            evento.tipo = request.getType().name();
+            evento.taskId = request.getTaskId() == null ? 0 : request.getTaskId();
+            evento.error = ultimoError;
+            evento.commit();
+        }
+        ServerEvents.terminarTraza();
+    }
+
+    /**
+     * Comprueba los límites de tiempo del cliente.
+     * Lo invoca periódicamente el vigilante del Server: si el cliente lleva demasiado
+     * tiempo inactivo, no termina una subida a tiempo o no está leyendo lo que se le envía,
+     * se cierra el socket para que el hilo bloqueado termine y libere sus recursos.
+     */
+    void comprobarTiempos(long ahora) {
+        String motivo = null;
+
+        long escritura = inicioEscritura;
+        if (escritura != 0 && ahora - escritura > TIEMPO_ESCRITURA_MS) {
+            motivo = "no lee las respuestas";
+        } else if (estado == Estado.ESPERANDO && !suscrito && ahora - desde > TIEMPO_INACTIVIDAD_MS) {
+            motivo = "inactivo";
+        } else if (estado == Estado.SUBIENDO && ahora > plazoSubida) {
+            motivo = "subida fuera de plazo";
+        }
+
+        if (motivo != null) {
+            System.out.println("Cerrando conexión de cliente (" + motivo + ")");
+            close();
+        }
+    }
 
     /* =========================
        Operaciones sobre tareas
        ========================= */
 
+    /**
+     * Negocia las opciones de la conexión.
+     * El cliente envía los códecs de compresión que soporta y el servidor
+     * responde con el que se usará (o null si ninguno le sirve).
+     * Los clientes que no envían HELLO trabajan sin compresión.
+     */
+    private void handleHello(Message request) throws IOException {
+        codec = null;
+        if (request.getCodecs() != null && request.getCodecs().contains(Compression.DEFLATE)) {
+            codec = Compression.DEFLATE;
+        }
+
+        Message response = new Message(Type.RESPONSE);
+        response.setCodec(codec);
+        send(response);
+    }
+
     /**
      * Envía al cliente la lista completa de tareas.
+     * La respuesta serializada se comparte entre todos los clientes mientras no cambien las tareas.
+     * Con includeArchived se añaden las tareas archivadas, leídas del disco en cada petición.
      */
-    private void handleList() throws IOException {
+    private void handleList(Message request) throws IOException {
+        if (request.isIncludeArchived()) {
+            List<Task> list = new ArrayList<>(Server.getAllTasks().values());
+            list.addAll(Server.consultarArchivadas(task -> true));
+            send(respuestaConTareas(list));
+            return;
+        }
 
-        // Se obtiene una copia del mapa de tareas del servidor
-        Map<Integer, Task> allTasks = Server.getAllTasks();
+        byte[] response = Server.getCacheRespuestas().obtener("LIST " + codec, Server.getVersion(), () -> {
+            // Se obtiene una copia del mapa de tareas del servidor
+            Map<Integer, Task> allTasks = Server.getAllTasks();
 
-        // Se convierte el mapa en una lista para enviarla al cliente
-        List<Task> list = new ArrayList<>(allTasks.values());
+            // Se convierte el mapa en una lista para enviarla al cliente
+            List<Task> list = new ArrayList<>(allTasks.values());
 
-        // Se construye el mensaje de respuesta
-        Message response = new Message(Type.RESPONSE);
-        response.setResult(list);
+            // Se construye el mensaje de respuesta
+            return respuestaConTareas(list);
+        });
 
-        // IMPORTANTE:
-        // reset() fuerza la re-serialización de los objetos
-        // y evita que el cliente reciba versiones antiguas cacheadas
-        out.reset(); // <-- force re-serialization or in other words: avoid cached objects
-        out.writeObject(response);
-        out.flush();
+        sendSerialized(response);
     }
 
     /**
      * Filtra las tareas según los criterios enviados por el cliente.
+     * La consulta puede combinar predicados, ordenar y limitar el resultado.
+     * Las consultas repetidas se sirven desde la caché de respuestas serializadas.
      */
     private void handleFilter(Message request) throws IOException {
-        Map<Integer, Task> allTasks = Server.getAllTasks();
-        List<Task> result = new ArrayList<>();
+        TaskQuery query = TaskQuery.consultaDe(request);
+        String error = QueryPlanner.validar(query);
+        if (error != null) {
+            sendError(error);
+            return;
+        }
 
-        // Se recorren todas las tareas aplicando los filtros
-        for (Task task : allTasks.values()) {
+        if (request.isIncludeArchived()) {
+            // Los mejores de las tareas en memoria y las archivadas que cumplen la condición,
+            // con el orden y el límite aplicados de nuevo sobre el conjunto
+            List<Task> candidatas = new ArrayList<>(Server.consultarTasks(query));
+            candidatas.addAll(Server.consultarArchivadas(query.getWhere()::test));
+            send(respuestaConTareas(query.seleccionar(candidatas)));
+            return;
+        }
 
-            // Filtro por estado completada
-            if (request.isCompleted() != null &&
-                    task.isCompletada() != request.isCompleted()) {
-                continue;
-            }
+        String clave = ResponseCache.claveDe(query) + " " + codec;
+        byte[] response = Server.getCacheRespuestas().obtener(clave, Server.getVersion(),
+                () -> respuestaConTareas(Server.consultarTasks(query)));
 
-            // Filtro por prioridad
-            if (request.getPriority() != null &&
-                    task.getPrioridad() != request.getPriority()) {
-                continue;
-            }
+        sendSerialized(response);
+    }
 
-            // Filtro por fecha máxima de vencimiento
-            if (request.getMaxDueDate() != null &&
-                    task.getFechaVencimiento().after(request.getMaxDueDate())) {
-                continue;
-            }
+    /**
+     * Busca tareas por texto en su descripción usando el índice invertido del servidor.
+     * El resultado va ordenado por relevancia (salvo que la consulta pida otro orden)
+     * y respeta los filtros y el límite de FILTER si se indican.
+     */
+    private void handleSearch(Message request) throws IOException {
+        TaskQuery query = TaskQuery.consultaDe(request);
+        String error = QueryPlanner.validar(query);
+        if (error != null) {
+            sendError(error);
+            return;
+        }
+
+        List<Task> encontradas = Server.buscarTasks(request.getQuery());
+        if (request.isIncludeArchived()) {
+            // Las archivadas no están en el índice: se comprueban sus descripciones y van detrás
+            Set<String> palabras = SearchIndex.tokenizar(request.getQuery());
+            encontradas = new ArrayList<>(encontradas);
+            encontradas.addAll(Server.consultarArchivadas(task -> SearchIndex.contiene(task.getDescripcion(), palabras)));
+        }
+        List<Task> result = query.seleccionar(encontradas);
 
-            // Si pasa todos los filtros, se añade al resultado
-            result.add(task);
+        send(respuestaConTareas(result));
+    }
+
+    /**
+     * Construye la respuesta con una lista de tareas, comprimida si la conexión lo ha acordado.
+     */
+    private Message respuestaConTareas(List<Task> tareas) {
+        Message response = new Message(Type.RESPONSE);
+        response.setResult(tareas);
+        if (codec != null) {
+            try {
+                Compression.comprimirResultado(response, compresion);
+            } catch (IOException e) {
+                // Si no se puede comprimir, la lista se envía sin comprimir
+            }
         }
+        return response;
+    }
 
+    /**
+     * Envía al cliente los contadores agregados de las tareas.
+     * El servidor los mantiene al día en cada cambio, así que no se recorre ninguna tarea.
+     */
+    private void handleStats() throws IOException {
         Message response = new Message(Type.RESPONSE);
-        response.setResult(result);
+        response.setResult(Server.getStats());
 
-        out.writeObject(response);
-        out.flush();
+        send(response);
     }
 
     /**
@@ -174,30 +390,45 @@ public class ClientHandler implements Runnable {
         );
 
         // Se añade la tarea al repositorio del servidor
-        Server.añadirTask(newTask);
+        try {
+            Server.añadirTask(newTask);
+        } catch (IllegalArgumentException e) {
+            // El almacén compacto rechaza los valores que no puede representar
+            sendError(e.getMessage());
+            return;
+        }
 
         // Respuesta de confirmación
         Message response = new Message(Type.RESPONSE);
         response.setResult(true);
 
-        out.writeObject(response);
-        out.flush();
+        send(response);
     }
 
     /**
      * Elimina una tarea existente según su id.
+     * Si la petición indica expectedVersion, solo se elimina si la tarea sigue en esa versión.
      */
     private void handleDelete(Message request) throws IOException {
         int id = request.getTaskId();
 
         // Se elimina la tarea del servidor
-        Server.quitarTask(id);
+        boolean eliminada;
+        try {
+            eliminada = Server.quitarTask(id, request.getExpectedVersion());
+        } catch (VersionConflictException e) {
+            sendConflict(e);
+            return;
+        }
+        if (!eliminada && Server.estaArchivada(id)) {
+            sendArchivada(id);
+            return;
+        }
 
         Message response = new Message(Type.RESPONSE);
-        response.setResult(true);
+        response.setResult(eliminada);
 
-        out.writeObject(response);
-        out.flush();
+        send(response);
     }
 
        /* =========================
@@ -213,63 +444,375 @@ public class ClientHandler implements Runnable {
         String fileName = request.getFileName();
 
         // Se extrae la extensión del archivo original
-        String extension = fileName.substring(fileName.lastIndexOf('.'));
+        int punto = fileName.lastIndexOf('.');
+        String extension = punto >= 0 ? fileName.substring(punto) : "";
+
+        ServerEvents.Subida evento = new ServerEvents.Subida();
+        evento.begin();
 
         Task task = Server.getTask(taskId);
         if (task == null) {
-            sendError("Tarea no encontrada");
+            if (Server.estaArchivada(taskId)) {
+                sendArchivada(taskId);
+            } else {
+                sendError("Tarea no encontrada");
+            }
+            // La subida rechazada también queda registrada, con el error enviado
+            evento.error = ultimoError;
+            terminarSubida(evento, taskId);
             return;
         }
 
-        // Recepción de bloques hasta que llegue el último
-        while (true) {
-            Message block = (Message) in.readObject();
+        // Si el cliente envía el hash del archivo, se le responde antes de recibir bloques:
+        // cuando el servidor ya tiene ese contenido, la transferencia no es necesaria
+        if (request.getContentHash() != null) {
+            boolean existente = FileManager.enlazarExistente(taskId, request.getContentHash(), extension);
+
+            Message decision = new Message(Type.RESPONSE);
+            decision.setSkipTransfer(existente);
+            send(decision);
+
+            if (existente) {
+                // Se marca la tarea como que tiene archivo adjunto
+                Server.adjuntoAsignado(taskId);
+                evento.omitida = true;
+                evento.completada = true;
+                terminarSubida(evento, taskId);
+                return;
+            }
+        }
+
+        // Durante la subida los bloques deben llegar seguidos y dentro del plazo total
+        plazoSubida = System.currentTimeMillis() + PLAZO_SUBIDA_MS;
+        cambiarEstado(Estado.SUBIENDO);
+        socket.setSoTimeout((int) TIEMPO_BLOQUE_MS);
+
+        Compression.Descompresor descompresor = null;
+        // Error de un bloque no válido: el resto de bloques se leen sin procesarlos para
+        // poder responder con el error y seguir usando la conexión
+        String error = null;
+        // Una subida interrumpida no deja archivos parciales en el servidor (ver Subida.close)
+        // Los bloques se escriben en disco en otro hilo mientras se siguen leyendo del socket
+        try (FileManager.Subida subida = FileManager.iniciarSubida(taskId, extension, request.getContentHash());
+             UploadPipeline tuberia = new UploadPipeline(subida)) {
+            // Recepción de bloques hasta que llegue el último
+            while (true) {
+                Message block = (Message) in.readObject();
+
+                if (System.currentTimeMillis() > plazoSubida) {
+                    throw new SocketTimeoutException("Subida fuera de plazo");
+                }
+
+                // Si es el último bloque, se termina la recepción
+                if (block.isLastBlock()) break;
+                if (error != null) continue;
+
+                byte[] datos = block.getDataBlock();
+                evento.bloques++;
+                evento.bytesRecibidos += datos.length;
+                if (block.isCompressed()) {
+                    // Todos los bloques de la subida forman un único flujo comprimido
+                    // (cada bloque descomprimido como mucho el doble del bloque más grande que envían los clientes)
+                    if (descompresor == null) {
+                        descompresor = new Compression.Descompresor(2 * Compression.MAX_BLOQUE);
+                    }
+                    try {
+                        datos = descompresor.descomprimir(datos);
+                    } catch (IOException e) {
+                        error = e.getMessage();
+                        continue;
+                    }
+                }
 
-            // Si es el último bloque, se termina la recepción
-            if (block.isLastBlock()) break;
+                // Se pasa el bloque a la etapa de escritura (espera si el disco va por detrás)
+                tuberia.añadir(datos, datos.length);
+                evento.bytes += datos.length;
+            }
 
-            // Se delega el guardado al FileManager
-            FileManager.guardarFile(
-                    taskId,
-                    extension,
-                    block.getDataBlock(),
-                    block.getDataBlock().length
-            );
+            // Con error, la subida se cierra sin completar y se descarta el archivo
+            if (error == null) {
+                tuberia.terminar();
+                try {
+                    subida.completar();
+                    evento.completada = true;
+                } catch (IOException e) {
+                    // Hash que no coincide o archivo que no se pudo guardar: ya se han leído
+                    // todos los bloques, así que se responde con el error y la conexión sigue
+                    error = e.getMessage();
+                }
+            }
+        } finally {
+            if (descompresor != null) {
+                descompresor.close();
+            }
+            socket.setSoTimeout(suscrito ? 0 : (int) TIEMPO_INACTIVIDAD_MS);
+            cambiarEstado(Estado.PROCESANDO);
+            evento.error = error;
+            terminarSubida(evento, taskId);
+        }
+        if (error != null) {
+            sendError(error);
+            return;
         }
 
         // Se marca la tarea como que tiene archivo adjunto
-        task.setTieneFichero(true);
+        Server.adjuntoAsignado(taskId);
 
         Message response = new Message(Type.RESPONSE);
         response.setResult(true);
-        out.writeObject(response);
-        out.flush();
+        send(response);
+    }
+
+    private static void terminarSubida(ServerEvents.Subida evento, int taskId) {
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.traceId = ServerEvents.trazaActual();
+            evento.taskId = taskId;
+            evento.commit();
+        }
     }
 
     /**
-     * Envía al cliente el archivo asociado a una tarea.
+     * Envía al cliente el archivo asociado a una tarea, o solo el rango pedido
+     * si la petición indica offset y/o length.
      */
     private void handleDownloadFile(Message request) throws IOException {
         int taskId = request.getTaskId();
+        long desde = request.getOffset() == null ? 0 : request.getOffset();
 
         // ClientHandler delega completamente la operación al FileManager
-        FileManager.sendFile(taskId, out);
+        // (se bloquea la salida para que ningún aviso se intercale entre los bloques)
+        synchronized (out) {
+            FileManager.sendFile(taskId, desde, request.getLength(), out, codec, compresion);
+        }
     }
 
     /**
      * Cambia el estado de una tarea (completada / no completada).
+     * Si la petición indica expectedVersion, solo se cambia si la tarea sigue en esa versión.
+     * Se responde con la tarea resultante, que incluye su nueva versión.
      */
-    private void handleChangeState(Message request) { int id = request.getTaskId();
+    private void handleChangeState(Message request) throws IOException {
+        int id = request.getTaskId();
         boolean completed = request.isCompleted();
 
-        Task task = Server.getTask(id);
-        if (task != null) {
-            task.setCompletada(completed);
+        // Se actualiza la tarea en el servidor
+        Task task;
+        try {
+            task = Server.cambiarEstado(id, completed, request.getExpectedVersion());
+        } catch (VersionConflictException e) {
+            sendConflict(e);
+            return;
+        }
+        if (task == null) {
+            if (Server.estaArchivada(id)) {
+                sendArchivada(id);
+            } else {
+                sendError("Tarea no encontrada");
+            }
+            return;
+        }
+        System.out.println("Cambiado el estado \"completado\" de la tarea");
+
+        Message response = new Message(Type.RESPONSE);
+        response.setResult(task);
+        send(response);
+    }
+
+    /* =========================
+       Avisos de vencimiento
+       ========================= */
+
+    /**
+     * Registra al cliente para recibir los avisos de vencimiento.
+     * A partir de aquí el servidor puede enviar mensajes EVENT en cualquier momento,
+     * por lo que el cliente suele usar una conexión dedicada para ellos.
+     */
+    private void handleSubscribe() throws IOException {
+        suscrito = true;
+        socket.setSoTimeout(0);
+        Server.suscribir(this);
+
+        Message response = new Message(Type.RESPONSE);
+        response.setResult(true);
+        send(response);
+    }
+
+    /**
+     * Envía un aviso al cliente. Lo invoca el Server desde otro hilo.
+     */
+    void enviarEvento(Message evento) {
+        try {
+            send(evento);
+        } catch (IOException e) {
+            // Si el cliente ya no está, el hilo principal terminará al leer del socket
+            close();
+        }
+    }
+
+    /* =========================
+       Replicación
+       ========================= */
+
+    /**
+     * En una réplica se rechazan los cambios (solo los acepta el primario) y las lecturas
+     * que piden un desfase máximo menor que el que lleva la réplica respecto al primario.
+     * Devuelve false si ya se ha respondido con un error.
+     */
+    private boolean admitidaEnReplica(Message request) throws IOException {
+        if (!Server.esReplica()) {
+            return true;
+        }
+        switch (request.getType()) {
+            case CREATE, DELETE, UPLOAD_FILE, CHANGE_STATE -> {
+                sendError("Servidor réplica: solo lectura");
+                return false;
+            }
+            case LIST, FILTER, SEARCH, STATS, DOWNLOAD_FILE -> {
+                Long maximo = request.getMaxStalenessMs();
+                long desfase = Server.getDesfaseReplica();
+                if (maximo != null && desfase > maximo) {
+                    sendError(desfase == Long.MAX_VALUE
+                            ? "Réplica aún sin sincronizar"
+                            : "Réplica retrasada " + desfase + " ms (máximo " + maximo + " ms)");
+                    return false;
+                }
+                return true;
+            }
+            default -> {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Envía a una réplica los cambios de las tareas a partir del último que tiene.
+     * Si la réplica no conoce este registro (otra época) o se ha quedado más atrás
+     * de lo que guarda, primero recibe una copia completa.
+     * A partir de aquí la conexión solo sirve para enviar cambios, hasta que se cierre.
+     */
+    private void handleReplicate(Message request) throws IOException {
+        ReplicationLog registro = Server.getRegistro();
+        long seq = request.getReplicationSeq() == null ? 0 : request.getReplicationSeq();
+        boolean copiaCompleta = !Objects.equals(request.getReplicationEpoch(), registro.getEpoca());
+        System.out.println("Réplica conectada desde el cambio " + seq + (copiaCompleta ? " (copia completa)" : ""));
+
+        // Contenidos ya enviados en esta conexión: la réplica los tiene y no se repiten
+        Set<String> enviados = new HashSet<>();
+        try {
+            while (true) {
+                List<ReplicationEntry> cambios = copiaCompleta ? null : registro.esperarDesde(seq, LATIDO_REPLICA_MS);
+                if (cambios == null) {
+                    seq = enviarCopiaCompleta(registro.getEpoca(), enviados);
+                    copiaCompleta = false;
+                    continue;
+                }
+                synchronized (out) {
+                    for (ReplicationEntry cambio : cambios) {
+                        escribirReplica(cambio);
+                        if (cambio.tipo() == Tipo.ATTACH) {
+                            enviarContenido(cambio.hash(), enviados);
+                        }
+                        seq = cambio.seq();
+                    }
+                    // El latido confirma a la réplica que, con estos cambios, está al día
+                    escribirReplica(ReplicationEntry.control(seq, Tipo.HEARTBEAT));
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Replicación interrumpida");
+        }
+    }
+
+    // Envía todas las tareas y adjuntos tal y como están ahora; devuelve el último cambio incluido
+    private long enviarCopiaCompleta(long epoca, Set<String> enviados) throws IOException {
+        Server.Instantanea copia = Server.instantaneaReplicacion();
+        synchronized (out) {
+            Message inicio = mensajeReplica(ReplicationEntry.control(copia.seq(), Tipo.SNAPSHOT_START));
+            inicio.setReplicationEpoch(epoca);
+            out.writeObject(inicio);
+            out.reset();
+
+            for (Task task : copia.tareas()) {
+                escribirReplica(ReplicationEntry.put(copia.seq(), task));
+            }
+            for (Map.Entry<Integer, FileManager.Adjunto> entrada : copia.adjuntos().entrySet()) {
+                FileManager.Adjunto adjunto = entrada.getValue();
+                escribirReplica(ReplicationEntry.attach(copia.seq(), entrada.getKey(), adjunto.hash(), adjunto.extension()));
+                enviarContenido(adjunto.hash(), enviados);
+            }
+            // Las tareas archivadas se leen del disco; sus adjuntos no cambian, así que se toman de ahora
+            TaskArchive.recorrer(copia.archivadas(), task -> {
+                escribirReplica(ReplicationEntry.archive(copia.seq(), task));
+                FileManager.Adjunto adjunto = task.isTieneFichero() ? FileManager.getAdjunto(task.getId()) : null;
+                if (adjunto != null) {
+                    escribirReplica(ReplicationEntry.attach(copia.seq(), task.getId(), adjunto.hash(), adjunto.extension()));
+                    enviarContenido(adjunto.hash(), enviados);
+                }
+            });
+            escribirReplica(ReplicationEntry.control(copia.seq(), Tipo.SNAPSHOT_END));
+            out.flush();
+        }
+        System.out.println("Copia completa enviada a la réplica: " + copia.tareas().size() + " tareas");
+        return copia.seq();
+    }
+
+    /**
+     * Envía a la réplica el contenido de un adjunto, en bloques, tras su cambio ATTACH.
+     * El último bloque lleva skipTransfer si el contenido ya se envió en esta conexión,
+     * o un mensaje de error si el primario ya no lo tiene (la tarea se borró después).
+     */
+    private void enviarContenido(String hash, Set<String> enviados) throws IOException {
+        Message fin = new Message(Type.REPLICATE);
+        fin.setLastBlock(true);
+        if (!enviados.add(hash)) {
+            fin.setSkipTransfer(true);
+        } else {
+            try (InputStream contenido = FileManager.abrirContenido(hash)) {
+                if (contenido == null) {
+                    enviados.remove(hash);
+                    fin.setErrorMessage("File not found");
+                } else {
+                    byte[] buffer = new byte[BLOQUE_REPLICA];
+                    int leidos;
+                    while ((leidos = contenido.readNBytes(buffer, 0, buffer.length)) > 0) {
+                        Message bloque = new Message(Type.REPLICATE);
+                        bloque.setDataBlock(leidos == buffer.length ? buffer : Arrays.copyOf(buffer, leidos));
+                        out.writeObject(bloque);
+                        out.reset();
+                    }
+                }
+            }
+        }
+        out.writeObject(fin);
+        out.reset();
+    }
+
+    // Escribe un cambio en el flujo hacia la réplica (sin vaciarlo)
+    private void escribirReplica(ReplicationEntry cambio) throws IOException {
+        out.writeObject(mensajeReplica(cambio));
+        out.reset();
+    }
+
+    private static Message mensajeReplica(ReplicationEntry cambio) {
+        Message message = new Message(Type.REPLICATE);
+        message.setReplicationEntry(cambio);
+        return message;
+    }
 
-            // Se actualiza la tarea en el servidor
-            Server.actualizarTask(task);
-            System.out.println("Cambiado el estado \"completado\" de la tarea");
+    /**
+     * Promueve esta réplica a primario (por ejemplo, cuando el primario ha caído).
+     */
+    private void handlePromote() throws IOException {
+        if (!Server.promover()) {
+            sendError("El servidor ya es primario");
+            return;
         }
+        Message response = new Message(Type.RESPONSE);
+        response.setResult(true);
+        send(response);
     }
 
    /* =========================
@@ -280,10 +823,71 @@ public class ClientHandler implements Runnable {
      * Envía un mensaje de error al cliente.
      */
     private void sendError(String text) throws IOException {
+        ultimoError = text;
         Message error = new Message(Type.ERROR);
         error.setErrorMessage(text);
-        out.writeObject(error);
-        out.flush();
+        send(error);
+    }
+
+    // Las tareas archivadas no se pueden cambiar
+    private void sendArchivada(int id) throws IOException {
+        sendError("La tarea " + id + " está archivada (solo lectura)");
+    }
+
+    // Error de conflicto de versiones, con la tarea tal y como está ahora
+    private void sendConflict(VersionConflictException e) throws IOException {
+        ultimoError = e.getMessage();
+        Message error = new Message(Type.ERROR);
+        error.setErrorMessage(e.getMessage());
+        error.setConflict(true);
+        error.setTask(e.getActual());
+        send(error);
+    }
+
+    /**
+     * Envía un mensaje al cliente.
+     * Las escrituras se sincronizan sobre el flujo porque los avisos
+     * pueden enviarse desde otros hilos.
+     */
+    private void send(Message message) throws IOException {
+        synchronized (out) {
+            // IMPORTANTE:
+            // reset() fuerza la re-serialización de los objetos
+            // y evita que el cliente reciba versiones antiguas cacheadas
+            out.reset(); // <-- force re-serialization or in other words: avoid cached objects
+            long enviados = vigilada.enviados;
+            ServerEvents.Serializacion evento = new ServerEvents.Serializacion();
+            evento.begin();
+            out.writeObject(message);
+            evento.end();
+            out.flush();
+            evento.terminar(message.getType().name(), vigilada.enviados - enviados, false);
+        }
+    }
+
+    /**
+     * Envía una respuesta ya serializada por ResponseCache.
+     * Los bytes se escriben directamente bajo el ObjectOutputStream: antes se reinicia
+     * el flujo para que el cliente interprete el objeto desde cero, y después se
+     * vuelve a reiniciar para que las referencias internas de ambos lados sigan alineadas.
+     */
+    private void sendSerialized(byte[] message) throws IOException {
+        synchronized (out) {
+            out.reset();
+            out.flush();
+            ServerEvents.Serializacion evento = new ServerEvents.Serializacion();
+            evento.begin();
+            salida.write(message);
+            evento.end();
+            out.reset();
+            out.flush();
+            evento.terminar(Type.RESPONSE.name(), message.length, true);
+        }
+    }
+
+    private void cambiarEstado(Estado nuevo) {
+        desde = System.currentTimeMillis();
+        estado = nuevo;
     }
 
     /**
@@ -294,4 +898,51 @@ public class ClientHandler implements Runnable {
             socket.close();
         } catch (IOException ignored) {}
     }
-}
\ No newline at end of file
+
+    /**
+     * Flujo de salida hacia el socket que anota cuándo empieza cada escritura.
+     * Java no permite límites de tiempo en las escrituras de un socket, así que
+     * el vigilante usa esta marca para cerrar la conexión de un cliente que no lee.
+     * También cuenta los bytes enviados (siempre se escribe con el cerrojo de "out").
+     */
+    private class SalidaVigilada extends FilterOutputStream {
+
+        long enviados;
+
+        SalidaVigilada(OutputStream destino) {
+            super(destino);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            inicioEscritura = System.currentTimeMillis();
+            try {
+                out.write(b);
+                enviados++;
+            } finally {
+                inicioEscritura = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            inicioEscritura = System.currentTimeMillis();
+            try {
+                out.write(b, off, len);
+                enviados += len;
+            } finally {
+                inicioEscritura = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            inicioEscritura = System.currentTimeMillis();
+            try {
+                out.flush();
+            } finally {
+                inicioEscritura = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package org.example.server;
+
+import org.example.common.Task;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Clase CompactTaskStore
+ *
+ * Almacén de tareas con una disposición compacta en memoria, alternativa al
+ * HashMap de Server.tasks cuando hay millones de tareas.
+ *
+ * En lugar de un objeto Task (con su Date, su String y un Integer como clave)
+ * por tarea, los campos se guardan en columnas de tipos primitivos:
+ *  - id: int
+ *  - fecha de vencimiento: long en milisegundos (SIN_FECHA si no tiene)
+ *  - versión: long
+ *  - prioridad: byte
+ *  - completada y con fichero: bits de un byte de indicadores
+ *  - descripción: bytes UTF-8 dentro de un único array compartido (arena)
+ * y el id se localiza con una tabla hash de direccionamiento abierto sobre int[].
+ *
+ * Implementa Map para poder sustituir al HashMap sin cambiar el resto del servidor.
+ * Las tareas que devuelve se crean al leerlas a partir de las columnas.
+ *
+ * No es thread-safe: el Server lo usa dentro de sus métodos synchronized.
+ */
+public class CompactTaskStore extends AbstractMap<Integer, Task> {
+
+    // Valor de la columna de vencimiento para las tareas sin fecha
+    private static final long SIN_FECHA = Long.MIN_VALUE;
+
+    // Bits de la columna de indicadores
+    private static final byte OCUPADA = 1;
+    private static final byte COMPLETADA = 1 << 1;
+    private static final byte FICHERO = 1 << 2;
+
+    // Posición vacía en la tabla de ids
+    private static final int LIBRE = -1;
+
+    private static final int CAPACIDAD_INICIAL = 16;
+
+    /* ---------- Columnas (una posición por fila) ---------- */
+    private int[] ids = new int[CAPACIDAD_INICIAL];
+    private long[] vencimientos = new long[CAPACIDAD_INICIAL];
+    private long[] versiones = new long[CAPACIDAD_INICIAL];
+    private byte[] prioridades = new byte[CAPACIDAD_INICIAL];
+    private byte[] indicadores = new byte[CAPACIDAD_INICIAL];
+    private int[] inicioDescripcion = new int[CAPACIDAD_INICIAL];
+    private int[] longitudDescripcion = new int[CAPACIDAD_INICIAL];
+
+    // Filas usadas alguna vez; las de tareas borradas se reutilizan (pila de filas libres)
+    private int filas;
+    private int[] filasLibres = new int[CAPACIDAD_INICIAL];
+    private int numFilasLibres;
+
+    /* ---------- Descripciones ---------- */
+    private byte[] arena = new byte[1024];
+    private int finArena;
+    // Bytes de descripciones borradas o sustituidas, recuperados al compactar la arena
+    private int bytesMuertos;
+
+    /* ---------- Tabla id -> fila (sondeo lineal) ---------- */
+    private int[] tabla = nuevaTabla(CAPACIDAD_INICIAL * 2);
+    private int tamaño;
+
+    /* =========================
+       Operaciones de Map
+       ========================= */
+
+    @Override
+    public int size() {
+        return tamaño;
+    }
+
+    @Override
+    public boolean containsKey(Object clave) {
+        return clave instanceof Integer id && buscarFila(id) != LIBRE;
+    }
+
+    @Override
+    public Task get(Object clave) {
+        if (!(clave instanceof Integer id)) {
+            return null;
+        }
+        int fila = buscarFila(id);
+        return fila == LIBRE ? null : leer(fila);
+    }
+
+    @Override
+    public Task put(Integer id, Task task) {
+        if (id != task.getId()) {
+            throw new IllegalArgumentException("La clave no coincide con el id de la tarea");
+        }
+        int prioridad = task.getPrioridad();
+        if (prioridad < Byte.MIN_VALUE || prioridad > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Prioridad no válida: " + prioridad);
+        }
+
+        int fila = buscarFila(id);
+        Task anterior = null;
+        if (fila != LIBRE) {
+            anterior = leer(fila);
+            liberarDescripcion(fila);
+        } else {
+            fila = nuevaFila();
+            ids[fila] = id;
+            insertarEnTabla(id, fila);
+            tamaño++;
+        }
+
+        vencimientos[fila] = task.getVencimientoMillis() == null ? SIN_FECHA : task.getVencimientoMillis();
+        prioridades[fila] = (byte) prioridad;
+        versiones[fila] = task.getVersion();
+        indicadores[fila] = (byte) (OCUPADA
+                | (task.isCompletada() ? COMPLETADA : 0)
+                | (task.isTieneFichero() ? FICHERO : 0));
+        guardarDescripcion(fila, task.getDescripcion());
+        return anterior;
+    }
+
+    @Override
+    public Task remove(Object clave) {
+        if (!(clave instanceof Integer id)) {
+            return null;
+        }
+        int fila = buscarFila(id);
+        if (fila == LIBRE) {
+            return null;
+        }
+        Task anterior = leer(fila);
+        quitarDeTabla(id);
+        liberarDescripcion(fila);
+        indicadores[fila] = 0;
+        if (numFilasLibres == filasLibres.length) {
+            filasLibres = Arrays.copyOf(filasLibres, filasLibres.length * 2);
+        }
+        filasLibres[numFilasLibres++] = fila;
+        tamaño--;
+        return anterior;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(tabla, LIBRE);
+        Arrays.fill(indicadores, 0, filas, (byte) 0);
+        filas = 0;
+        numFilasLibres = 0;
+        finArena = 0;
+        bytesMuertos = 0;
+        tamaño = 0;
+    }
+
+    @Override
+    public Set<Entry<Integer, Task>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return tamaño;
+            }
+
+            @Override
+            public Iterator<Entry<Integer, Task>> iterator() {
+                return new Iterator<>() {
+                    private int siguiente = avanzar(0);
+                    private int actual = LIBRE;
+
+                    private int avanzar(int desde) {
+                        while (desde < filas && (indicadores[desde] & OCUPADA) == 0) {
+                            desde++;
+                        }
+                        return desde;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return siguiente < filas;
+                    }
+
+                    @Override
+                    public Entry<Integer, Task> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        actual = siguiente;
+                        siguiente = avanzar(siguiente + 1);
+                        return new SimpleImmutableEntry<>(ids[actual], leer(actual));
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (actual == LIBRE) {
+                            throw new IllegalStateException();
+                        }
+                        // Borrar solo libera la fila: no mueve las que quedan por recorrer
+                        CompactTaskStore.this.remove(ids[actual]);
+                        actual = LIBRE;
+                    }
+                };
+            }
+        };
+    }
+
+    /* =========================
+       Filas
+       ========================= */
+
+    // Crea la vista Task de una fila
+    private Task leer(int fila) {
+        long vence = vencimientos[fila];
+        return new Task(ids[fila], leerDescripcion(fila),
+                vence == SIN_FECHA ? null : new Date(vence), prioridades[fila],
+                (indicadores[fila] & COMPLETADA) != 0, (indicadores[fila] & FICHERO) != 0, versiones[fila]);
+    }
+
+    private int nuevaFila() {
+        if (numFilasLibres > 0) {
+            return filasLibres[--numFilasLibres];
+        }
+        if (filas == ids.length) {
+            int capacidad = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacidad);
+            vencimientos = Arrays.copyOf(vencimientos, capacidad);
+            versiones = Arrays.copyOf(versiones, capacidad);
+            prioridades = Arrays.copyOf(prioridades, capacidad);
+            indicadores = Arrays.copyOf(indicadores, capacidad);
+            inicioDescripcion = Arrays.copyOf(inicioDescripcion, capacidad);
+            longitudDescripcion = Arrays.copyOf(longitudDescripcion, capacidad);
+        }
+        return filas++;
+    }
+
+    /* =========================
+       Descripciones (arena)
+       ========================= */
+
+    private String leerDescripcion(int fila) {
+        int longitud = longitudDescripcion[fila];
+        return longitud < 0 ? null : new String(arena, inicioDescripcion[fila], longitud, StandardCharsets.UTF_8);
+    }
+
+    private void guardarDescripcion(int fila, String descripcion) {
+        if (descripcion == null) {
+            longitudDescripcion[fila] = -1;
+            return;
+        }
+        byte[] bytes = descripcion.getBytes(StandardCharsets.UTF_8);
+        if (finArena + bytes.length > arena.length) {
+            // Antes de crecer se recupera el espacio de las descripciones borradas
+            if (bytesMuertos > finArena / 2) {
+                compactarArena();
+            }
+            if (finArena + bytes.length > arena.length) {
+                long capacidad = Math.max((long) arena.length * 2, (long) finArena + bytes.length);
+                if (capacidad > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Las descripciones no caben en el almacén compacto");
+                }
+                arena = Arrays.copyOf(arena, (int) capacidad);
+            }
+        }
+        System.arraycopy(bytes, 0, arena, finArena, bytes.length);
+        inicioDescripcion[fila] = finArena;
+        longitudDescripcion[fila] = bytes.length;
+        finArena += bytes.length;
+    }
+
+    private void liberarDescripcion(int fila) {
+        if (longitudDescripcion[fila] > 0) {
+            bytesMuertos += longitudDescripcion[fila];
+        }
+        longitudDescripcion[fila] = -1;
+    }
+
+    // Copia las descripciones vivas al principio de la arena, en orden de fila
+    private void compactarArena() {
+        byte[] nueva = new byte[arena.length];
+        int fin = 0;
+        for (int fila = 0; fila < filas; fila++) {
+            int longitud = longitudDescripcion[fila];
+            if ((indicadores[fila] & OCUPADA) != 0 && longitud > 0) {
+                System.arraycopy(arena, inicioDescripcion[fila], nueva, fin, longitud);
+                inicioDescripcion[fila] = fin;
+                fin += longitud;
+            }
+        }
+        arena = nueva;
+        finArena = fin;
+        bytesMuertos = 0;
+    }
+
+    /* =========================
+       Tabla id -> fila
+       ========================= */
+
+    private static int[] nuevaTabla(int capacidad) {
+        int[] nueva = new int[capacidad];
+        Arrays.fill(nueva, LIBRE);
+        return nueva;
+    }
+
+    private static int posicionInicial(int id, int capacidad) {
+        // Mezcla los bits para que los ids consecutivos no formen racimos
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (capacidad - 1);
+    }
+
+    private int buscarFila(int id) {
+        int mascara = tabla.length - 1;
+        for (int i = posicionInicial(id, tabla.length); ; i = (i + 1) & mascara) {
+            int fila = tabla[i];
+            if (fila == LIBRE) {
+                return LIBRE;
+            }
+            if (ids[fila] == id) {
+                return fila;
+            }
+        }
+    }
+
+    private void insertarEnTabla(int id, int fila) {
+        // Se mantiene la tabla ocupada como mucho a la mitad
+        if ((tamaño + 1) * 2 > tabla.length) {
+            redimensionarTabla(tabla.length * 2);
+        }
+        colocar(tabla, id, fila);
+    }
+
+    private void colocar(int[] destino, int id, int fila) {
+        int mascara = destino.length - 1;
+        int i = posicionInicial(id, destino.length);
+        while (destino[i] != LIBRE) {
+            i = (i + 1) & mascara;
+        }
+        destino[i] = fila;
+    }
+
+    private void redimensionarTabla(int capacidad) {
+        int[] nueva = nuevaTabla(capacidad);
+        for (int fila : tabla) {
+            if (fila != LIBRE) {
+                colocar(nueva, ids[fila], fila);
+            }
+        }
+        tabla = nueva;
+    }
+
+    // Borrado con sondeo lineal: se recolocan las entradas siguientes del mismo racimo
+    private void quitarDeTabla(int id) {
+        int mascara = tabla.length - 1;
+        int i = posicionInicial(id, tabla.length);
+        while (ids[tabla[i]] != id) {
+            i = (i + 1) & mascara;
+        }
+        tabla[i] = LIBRE;
+        for (int j = (i + 1) & mascara; tabla[j] != LIBRE; j = (j + 1) & mascara) {
+            int fila = tabla[j];
+            tabla[j] = LIBRE;
+            colocar(tabla, ids[fila], fila);
+        }
+    }
+}
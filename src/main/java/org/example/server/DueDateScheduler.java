@@ -0,0 +1,165 @@
+package org.example.server;
+
+import org.example.common.Message.Event;
+import org.example.common.Task;
+
+import java.util.PriorityQueue;
+
+/**
+ * Clase DueDateScheduler
+ *
+ * Lleva la cuenta de las fechas de vencimiento de las tareas pendientes y
+ * avisa cuando una tarea está a punto de vencer o ya ha vencido.
+ *
+ * Los avisos se guardan en una cola de prioridad ordenada por el momento en que
+ * deben dispararse, de forma que programar o cancelar una tarea cuesta O(log n)
+ * y el hilo del planificador solo se despierta cuando toca el siguiente aviso,
+ * sin recorrer nunca el mapa de tareas.
+ *
+ * Cancelar no saca los avisos de la cola: cada tarea tiene una generación y los
+ * avisos de una generación antigua se descartan al llegar su momento. Como ese
+ * momento puede estar a meses vista, se cuentan los avisos anulados y, cuando
+ * llegan a la mitad de la cola, se sacan todos de una vez (O(n), pero solo
+ * después de n/2 cancelaciones), así que la cola no crece con los cambios.
+ */
+public class DueDateScheduler implements Runnable {
+
+    // Antelación con la que se envía el recordatorio antes del vencimiento
+    private static final long ANTELACION_MS = Long.getLong("tareas.recordatorioMs", 15 * 60 * 1000L);
+
+    // Aviso pendiente de disparar
+    private record Aviso(long momento, int taskId, int generacion, Event tipo) {}
+
+    // Avisos ordenados por el momento en que deben dispararse
+    private final PriorityQueue<Aviso> cola = new PriorityQueue<>((a, b) -> Long.compare(a.momento, b.momento));
+
+    // Generación vigente de cada tarea programada (las tareas canceladas no aparecen)
+    private final IntIntMap generaciones = new IntIntMap();
+
+    private int siguienteGeneracion = 1;
+
+    // Avisos de la cola que ya no son vigentes (estimación por exceso: se cuentan los dos
+    // avisos de cada generación anulada aunque el recordatorio ya se hubiera disparado)
+    private int anulados;
+
+    /**
+     * Programa los avisos de una tarea pendiente.
+     * Si la tarea ya estaba programada, los avisos anteriores quedan anulados.
+     */
+    public synchronized void programar(Task task) {
+        if (task.isCompletada() || task.getVencimientoMillis() == null) {
+            cancelar(task.getId());
+            return;
+        }
+
+        anular(task.getId());
+        int generacion = siguienteGeneracion++;
+        generaciones.put(task.getId(), generacion);
+
+        long vence = task.getVencimientoMillis();
+        long recordatorio = vence - ANTELACION_MS;
+
+        // Si ya se ha pasado el momento del recordatorio solo queda avisar del vencimiento
+        if (recordatorio > System.currentTimeMillis()) {
+            cola.add(new Aviso(recordatorio, task.getId(), generacion, Event.DUE_SOON));
+        }
+        cola.add(new Aviso(vence, task.getId(), generacion, Event.OVERDUE));
+
+        // Puede que el nuevo aviso sea el más próximo: se despierta al hilo
+        notifyAll();
+    }
+
+    /**
+     * Programa los avisos de una tarea recuperada (de la instantánea al arrancar o del primario).
+     * Si ya está pendiente y vencida no se programa su aviso: devuelve true para que el
+     * Server la anote como vencida directamente, en vez de disparar de golpe un aviso
+     * por cada tarea vencida mientras el servidor estaba parado.
+     */
+    public synchronized boolean restaurar(Task task) {
+        Long vence = task.getVencimientoMillis();
+        if (!task.isCompletada() && vence != null && vence <= System.currentTimeMillis()) {
+            anular(task.getId());
+            return true;
+        }
+        programar(task);
+        return false;
+    }
+
+    /**
+     * Anula los avisos pendientes de una tarea (borrada o completada).
+     */
+    public synchronized void cancelar(int taskId) {
+        anular(taskId);
+    }
+
+    // Anula la generación vigente de la tarea, si tiene, y cuenta sus avisos como anulados
+    private void anular(int taskId) {
+        if (generaciones.get(taskId, 0) == 0) {
+            return;
+        }
+        generaciones.remove(taskId);
+        anulados += 2;
+        if (anulados > cola.size() / 2) {
+            compactar();
+        }
+    }
+
+    // Saca de la cola los avisos de tareas canceladas o reprogramadas
+    private void compactar() {
+        cola.removeIf(aviso -> !vigente(aviso));
+        anulados = 0;
+    }
+
+    private boolean vigente(Aviso aviso) {
+        return generaciones.get(aviso.taskId, 0) == aviso.generacion;
+    }
+
+    /**
+     * Bucle del hilo planificador.
+     * Espera hasta el siguiente aviso y lo publica si sigue siendo válido.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Aviso aviso = siguienteAviso();
+                Task task = Server.getTask(aviso.taskId);
+                if (task != null) {
+                    // La publicación se hace fuera del cerrojo para no retrasar nuevas programaciones
+                    Server.publicarEvento(aviso.tipo, task);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Bloquea hasta que haya un aviso vigente cuyo momento ya ha llegado
+    private synchronized Aviso siguienteAviso() throws InterruptedException {
+        while (true) {
+            Aviso primero = cola.peek();
+            if (primero == null) {
+                wait();
+                continue;
+            }
+
+            long espera = primero.momento - System.currentTimeMillis();
+            if (espera > 0) {
+                wait(espera);
+                continue;
+            }
+
+            cola.poll();
+            if (!vigente(primero)) {
+                // Aviso de una tarea cancelada o reprogramada
+                anulados = Math.max(0, anulados - 1);
+                continue;
+            }
+            if (primero.tipo == Event.OVERDUE) {
+                // Tras el vencimiento ya no quedan avisos para esta tarea
+                generaciones.remove(primero.taskId);
+            }
+            return primero;
+        }
+    }
+}
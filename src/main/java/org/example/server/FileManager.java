@@ -1,106 +1,417 @@
 package org.example.server;
 
+import org.example.common.Compression;
 import org.example.common.Message;
 import org.example.common.Message.Type;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 // Clase que se encarga de gestionar los archivos
+// Los archivos se guardan una sola vez por contenido: el nombre de cada archivo en disco es
+// el hash SHA-256 de su contenido, y varias tareas pueden apuntar al mismo archivo.
+// Cada archivo lleva la cuenta de cuántas tareas lo usan y se borra cuando deja de usarse.
 public class FileManager {
 
-    private static final String DIRECTORIO = "archivosTareas/"; //nombre del directorio donde se guardan los archivos
+    //nombre del directorio donde se guardan los archivos (configurable para arrancar varios servidores en la misma máquina)
+    private static final String DIRECTORIO = System.getProperty("tareas.directorio", "archivosTareas") + "/";
+    private static final String DIRECTORIO_CONTENIDOS = DIRECTORIO + "blobs/"; //archivos guardados por hash
+    private static final String DIRECTORIO_TEMPORAL = DIRECTORIO + "tmp/"; //subidas que aún no han terminado
     private static final int BUFFER_SIZE = 4096; //tamaño del buffer para leer/escribir archivos en bloques
+    private static final String EXTENSION_PARCIAL = ".part"; //sufijo de los archivos cuya subida no ha terminado
+    private static final String ALGORITMO_HASH = "SHA-256";
 
-    // Metodo que asegura que el directorio para los archivos existe
+    // Adjunto de una tarea: hash del contenido y extensión del archivo original
+    public record Adjunto(String hash, String extension) {}
+
+    // Adjunto de cada tarea (id de tarea -> adjunto)
+    private static final Map<Integer, Adjunto> adjuntos = new HashMap<>();
+
+    // Número de tareas que usan cada contenido (hash -> referencias)
+    private static final Map<String, Integer> referencias = new HashMap<>();
+
+    // Para dar nombres únicos a los archivos temporales
+    private static final AtomicLong contadorSubidas = new AtomicLong();
+
+    // Bloques de los archivos pequeños más descargados
+    private static final AttachmentCache cache = new AttachmentCache();
+
+    static {
+        // Las subidas a medias de una ejecución anterior ya no se van a completar
+        File[] restos = new File(DIRECTORIO_TEMPORAL).listFiles();
+        if (restos != null) {
+            for (File f : restos) {
+                f.delete();
+            }
+        }
+    }
+
+    // Metodo que asegura que los directorios para los archivos existen
     private static void existeDirectorio() {
-        File dir = new File(DIRECTORIO);
-        if (!dir.exists()) {
-            dir.mkdir();
+        new File(DIRECTORIO_CONTENIDOS).mkdirs();
+        new File(DIRECTORIO_TEMPORAL).mkdirs();
+    }
+
+    /* =========================
+       Subidas
+       ========================= */
+
+    /**
+     * Subida de un archivo en curso.
+     * Los bloques se escriben en un archivo temporal mientras se calcula su hash;
+     * al completarse, el archivo pasa al almacén por contenido (o se descarta si
+     * ese contenido ya estaba guardado) y se asigna a la tarea.
+     */
+    public static class Subida implements Closeable {
+
+        private final int taskId;
+        private final String extension;
+        private final String hashEsperado;
+        private final File temporal;
+        private final OutputStream salida;
+        private final MessageDigest digest;
+        private boolean terminada;
+
+        private Subida(int taskId, String extension, String hashEsperado) throws IOException {
+            this.taskId = taskId;
+            this.extension = extension;
+            this.hashEsperado = hashEsperado;
+            existeDirectorio();
+            this.temporal = new File(DIRECTORIO_TEMPORAL + taskId + "-" + contadorSubidas.incrementAndGet() + EXTENSION_PARCIAL);
+            this.salida = new BufferedOutputStream(new FileOutputStream(temporal), 64 * 1024);
+            this.digest = nuevoDigest();
+        }
+
+        // Guarda un bloque del archivo
+        public void escribir(byte[] buffer, int bytesRead) throws IOException {
+            salida.write(buffer, 0, bytesRead);
+            digest.update(buffer, 0, bytesRead);
+        }
+
+        /**
+         * Termina la subida y asigna el archivo a la tarea.
+         * Si el cliente indicó el hash del archivo y no coincide con lo recibido, se descarta.
+         */
+        public void completar() throws IOException {
+            salida.close();
+            String hash = HexFormat.of().formatHex(digest.digest());
+            if (hashEsperado != null && !hashEsperado.equalsIgnoreCase(hash)) {
+                throw new IOException("El archivo recibido no coincide con su hash");
+            }
+
+            synchronized (FileManager.class) {
+                File contenido = archivoContenido(hash);
+                if (contenido.exists()) {
+                    // Ya estaba guardado por otra tarea: basta con referenciarlo
+                    temporal.delete();
+                } else if (!temporal.renameTo(contenido)) {
+                    throw new IOException("No se pudo guardar el archivo de la tarea " + taskId);
+                }
+                asignar(taskId, new Adjunto(hash, extension));
+            }
+            terminada = true;
+        }
+
+        // Si la subida no ha terminado, se descarta el archivo temporal
+        @Override
+        public void close() {
+            if (terminada) {
+                return;
+            }
+            try {
+                salida.close();
+            } catch (IOException ignored) {}
+            if (temporal.exists() && !temporal.delete()) {
+                System.out.println("No se pudo borrar el archivo parcial " + temporal.getName());
+            }
         }
     }
 
-    // Guarda un archivo en bloques
-    public static void guardarFile(int id, String extension, byte[] buffer, int bytesRead) throws IOException {
-        // Asegurarse de que el directorio existe
-        existeDirectorio();
+    // Empieza la subida de un archivo para una tarea
+    // hashEsperado es el hash que indica el cliente (o null si no lo indica)
+    public static Subida iniciarSubida(int taskId, String extension, String hashEsperado) throws IOException {
+        return new Subida(taskId, extension, hashEsperado);
+    }
 
-        // Crear el archivo con el ID de la tarea y la extension
-        File file = new File(DIRECTORIO + id + extension);
+    /**
+     * Asigna a la tarea un contenido que ya está guardado, sin transferirlo.
+     * Devuelve false si el servidor no tiene ese contenido y hay que subirlo.
+     */
+    public static synchronized boolean enlazarExistente(int taskId, String hash, String extension) {
+        if (hash == null) {
+            return false;
+        }
+        String normalizado = hash.toLowerCase();
+        if (!normalizado.matches("[0-9a-f]{64}") || !archivoContenido(normalizado).exists()) {
+            return false;
+        }
+        asignar(taskId, new Adjunto(normalizado, extension));
+        return true;
+    }
 
-        // Escribimos por bloques
-        try (FileOutputStream fos = new FileOutputStream(file, true)) {
-            fos.write(buffer, 0, bytesRead);
+    /**
+     * Libera el adjunto de una tarea (por ejemplo, al borrarla).
+     * Si ninguna otra tarea usa el mismo contenido, el archivo se borra del disco.
+     */
+    public static synchronized void liberar(int taskId) {
+        Adjunto adjunto = adjuntos.remove(taskId);
+        if (adjunto != null) {
+            quitarReferencia(adjunto.hash());
         }
     }
 
-    // Buscar un archivo por su id de tarea
-    private static File encontrarFile(int id) {
-        File dir = new File(DIRECTORIO);
-        // Lista todos los archivos en el directorio
-        File[] files = dir.listFiles();
-        if (files == null) return null;
-        // Recorre los archivos buscando el que empieza con el id de la tarea
-        for (File f : files) {
-            if (f.getName().startsWith(String.valueOf(id))) {
-                return f;
+    // Caché de descargas (para consultar sus métricas)
+    public static AttachmentCache getCache() {
+        return cache;
+    }
+
+    // Adjunto actual de una tarea (null si no tiene)
+    public static synchronized Adjunto getAdjunto(int taskId) {
+        return adjuntos.get(taskId);
+    }
+
+    // Copia de los adjuntos de todas las tareas (para guardar la instantánea del estado)
+    public static synchronized Map<Integer, Adjunto> getAdjuntos() {
+        return new HashMap<>(adjuntos);
+    }
+
+    /**
+     * Recupera al arrancar los adjuntos guardados en la instantánea del estado.
+     * Se descartan los que apuntan a un contenido que ya no está en el disco.
+     */
+    static synchronized int restaurar(Map<Integer, Adjunto> guardados) {
+        int restaurados = 0;
+        for (Map.Entry<Integer, Adjunto> adjunto : guardados.entrySet()) {
+            if (archivoContenido(adjunto.getValue().hash()).exists()) {
+                asignar(adjunto.getKey(), adjunto.getValue());
+                restaurados++;
             }
         }
-        return null;
+        return restaurados;
+    }
+
+    // Abre para lectura un contenido guardado (null si ya no existe), por ejemplo para enviarlo a una réplica
+    // Una vez abierto se puede leer entero aunque se borre mientras tanto
+    public static synchronized InputStream abrirContenido(String hash) throws IOException {
+        File contenido = archivoContenido(hash);
+        return contenido.exists() ? new FileInputStream(contenido) : null;
     }
 
+    // Sustituye el adjunto de la tarea, actualizando las referencias de ambos contenidos
+    private static void asignar(int taskId, Adjunto nuevo) {
+        referencias.merge(nuevo.hash(), 1, Integer::sum);
+        Adjunto anterior = adjuntos.put(taskId, nuevo);
+        if (anterior != null) {
+            quitarReferencia(anterior.hash());
+        }
+    }
+
+    private static void quitarReferencia(String hash) {
+        int restantes = referencias.merge(hash, -1, Integer::sum);
+        if (restantes <= 0) {
+            referencias.remove(hash);
+            cache.invalidar(hash);
+            File contenido = archivoContenido(hash);
+            if (contenido.exists() && !contenido.delete()) {
+                System.out.println("No se pudo borrar el archivo " + contenido.getName());
+            }
+        }
+    }
+
+    // Abre un contenido guardado para leerlo (null si ya no existe); se llama con el cerrojo tomado
+    private static FileChannel abrirCanal(String hash) throws IOException {
+        try {
+            return FileChannel.open(archivoContenido(hash).toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static File archivoContenido(String hash) {
+        return new File(DIRECTORIO_CONTENIDOS + hash);
+    }
+
+    private static MessageDigest nuevoDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITMO_HASH);
+        } catch (NoSuchAlgorithmException e) {
+            // Todas las JVM deben incluir SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* =========================
+       Descargas
+       ========================= */
+
     // Envía al cliente el archivo asociado a una tarea utilizando el protocolo basado en Message
-    public static void sendFile(int id, ObjectOutputStream out) throws IOException {
-        // Se busca el archivo correspondiente al ID de la tarea
-        File file = encontrarFile(id);
+    // Se envía el rango [desde, desde + longitud) del archivo; longitud null = hasta el final
+    // Si la conexión ha acordado un códec y el archivo no está ya comprimido, los bloques se comprimen
+    // Los archivos pequeños descargados completos se sirven desde la caché de bloques cuando es posible
+    public static void sendFile(int id, long desde, Long longitud, ObjectOutputStream out,
+                                String codec, Compression.Contador contador) throws IOException {
+        // Se busca el archivo correspondiente al ID de la tarea y se abre con el cerrojo tomado:
+        // si otra tarea lo libera y se borra mientras se envía, el canal abierto se sigue pudiendo leer
+        Adjunto adjunto;
+        FileChannel canal;
+        synchronized (FileManager.class) {
+            adjunto = adjuntos.get(id);
+            canal = adjunto == null ? null : abrirCanal(adjunto.hash());
+        }
 
         // Si no existe el archivo, se envía un mensaje de error al cliente
-        if (file == null) {
-            Message error = new Message(Type.ERROR);
-            error.setErrorMessage("File not found");
-            out.writeObject(error);
-            out.flush();
+        if (canal == null) {
+            enviarError(out, "File not found");
             return;
         }
 
-        // Se abre un flujo de entrada para leer el archivo desde disco
-        try (FileInputStream fis = new FileInputStream(file)) {
-            // Buffer utilizado para leer el archivo por bloques
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int bytesRead;
+        List<byte[]> bloques;
+        String codecTransferencia;
+        try (canal) {
+            long tamaño = canal.size();
+            if (desde < 0 || desde > tamaño || (longitud != null && longitud < 0)) {
+                enviarError(out, "Rango no válido (tamaño del archivo: " + tamaño + ")");
+                return;
+            }
+            long hasta = longitud == null ? tamaño : Math.min(tamaño, desde + longitud);
+            boolean completo = desde == 0 && hasta == tamaño;
+
+            // Códec de esta transferencia (null si los bloques se envían tal cual)
+            codecTransferencia = codec != null && Compression.mereceComprimir(adjunto.extension()) ? codec : null;
 
-            // Lectura del archivo hasta que no queden más datos
-            while ((bytesRead = fis.read(buffer)) != -1) {
+            // Evento de JFR de la descarga (solo se graba si hay una grabación activa)
+            ServerEvents.Descarga evento = new ServerEvents.Descarga();
+            evento.begin();
 
-                // Se crea un mensaje de tipo DOWNLOAD_FILE para cada bloque leído
-                Message block = new Message(Type.DOWNLOAD_FILE);
+            // Solo se consulta la caché con los archivos que podría guardar: los grandes no cuentan como fallos
+            boolean cacheable = completo && cache.admite(tamaño);
+            List<byte[]> guardados = cacheable ? cache.obtener(adjunto.hash(), codecTransferencia) : null;
+            if (guardados != null) {
+                for (byte[] bloque : guardados) {
+                    enviarBloque(out, bloque, codecTransferencia != null);
+                    evento.bloques++;
+                    evento.bytesEnviados += bloque.length;
+                }
+                enviarFin(out, tamaño, id + (adjunto.extension() == null ? "" : adjunto.extension()));
+                evento.desdeCache = true;
+                terminarDescarga(evento, id, desde, tamaño);
+                return;
+            }
 
-                // Se copia únicamente la parte válida del buffer
-                block.setDataBlock(copyBuffer(buffer, bytesRead));
+            // Si se descarga completo un archivo pequeño, se guardan sus bloques mientras se envían
+            bloques = cacheable ? new ArrayList<>() : null;
 
-                // Se indica que este no es el último bloque
-                block.setLastBlock(false);
+            // Compresor de la transferencia (null si los bloques se envían tal cual)
+            Compression.Compresor compresor = codecTransferencia != null ? new Compression.Compresor(contador) : null;
 
-                // Se envía el bloque al cliente
-                out.writeObject(block);
-                out.flush();
+            // Se lee el archivo por posición, sin recorrer la parte que no se pide
+            try {
+                // Buffer utilizado para leer el archivo por bloques
+                byte[] buffer = new byte[BUFFER_SIZE];
+                ByteBuffer lectura = ByteBuffer.wrap(buffer);
+                long posicion = desde;
 
-                // IMPORTANTE:
-                // reset() evita que ObjectOutputStream reutilice objetos ya enviados
-                // y fuerza la serialización completa de cada bloque
-                out.reset();
-            }
+                // Lectura del rango hasta que no queden más datos
+                while (posicion < hasta) {
+                    lectura.clear().limit((int) Math.min(BUFFER_SIZE, hasta - posicion));
+                    int bytesRead = canal.read(lectura, posicion);
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    posicion += bytesRead;
 
-            // Cuando se han enviado todos los bloques, se envía un mensaje final
-            Message end = new Message(Type.DOWNLOAD_FILE);
+                    // Se copia únicamente la parte válida del buffer (comprimida si procede)
+                    byte[] bloque = compresor != null
+                            ? compresor.comprimir(buffer, bytesRead)
+                            : copyBuffer(buffer, bytesRead);
+                    if (bloques != null) {
+                        bloques.add(bloque);
+                    }
+                    enviarBloque(out, bloque, compresor != null);
+                    evento.bloques++;
+                    evento.bytesEnviados += bloque.length;
+                }
 
-            // Este mensaje indica explícitamente el final de la transferencia
-            end.setLastBlock(true);
+                // Cuando se han enviado todos los bloques, se envía un mensaje final
+                enviarFin(out, tamaño, id + (adjunto.extension() == null ? "" : adjunto.extension()));
+                terminarDescarga(evento, id, desde, posicion);
+            } finally {
+                if (compresor != null) {
+                    compresor.close();
+                }
+            }
+        }
+
+        if (bloques != null) {
+            synchronized (FileManager.class) {
+                // Si el archivo se ha borrado mientras se enviaba, no se guarda
+                if (referencias.containsKey(adjunto.hash())) {
+                    cache.guardar(adjunto.hash(), codecTransferencia, bloques);
+                }
+            }
+        }
+    }
 
-            out.writeObject(end);
-            out.flush();
+    private static void terminarDescarga(ServerEvents.Descarga evento, int id, long desde, long hasta) {
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.traceId = ServerEvents.trazaActual();
+            evento.taskId = id;
+            evento.desde = desde;
+            evento.bytes = hasta - desde;
+            evento.commit();
         }
     }
 
+    private static void enviarError(ObjectOutputStream out, String mensaje) throws IOException {
+        Message error = new Message(Type.ERROR);
+        error.setErrorMessage(mensaje);
+        out.writeObject(error);
+        out.flush();
+    }
+
+    // Envía un bloque del archivo en un mensaje DOWNLOAD_FILE
+    private static void enviarBloque(ObjectOutputStream out, byte[] datos, boolean comprimido) throws IOException {
+        Message block = new Message(Type.DOWNLOAD_FILE);
+        block.setDataBlock(datos);
+        block.setCompressed(comprimido);
+
+        // Se indica que este no es el último bloque
+        block.setLastBlock(false);
+
+        // Se envía el bloque al cliente
+        out.writeObject(block);
+        out.flush();
+
+        // IMPORTANTE:
+        // reset() evita que ObjectOutputStream reutilice objetos ya enviados
+        // y fuerza la serialización completa de cada bloque
+        out.reset();
+    }
+
+    // Envía el mensaje que indica explícitamente el final de la transferencia
+    // Incluye el tamaño total del archivo para que el cliente pueda pedir el resto,
+    // y un nombre para guardarlo (id de la tarea y extensión del archivo original)
+    private static void enviarFin(ObjectOutputStream out, long tamaño, String nombre) throws IOException {
+        Message end = new Message(Type.DOWNLOAD_FILE);
+        end.setLastBlock(true);
+        end.setFileSize(tamaño);
+        end.setFileName(nombre);
+        out.writeObject(end);
+        out.flush();
+    }
+
     private static byte[] copyBuffer(byte[] buffer, int length) {
         byte[] data = new byte[length];
         System.arraycopy(buffer, 0, data, 0, length);
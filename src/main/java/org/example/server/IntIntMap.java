@@ -0,0 +1,102 @@
+package org.example.server;
+
+import java.util.Arrays;
+
+/**
+ * Clase IntIntMap
+ *
+ * Mapa de int a int con direccionamiento abierto y sondeo lineal, para los datos
+ * por tarea que no necesitan un HashMap<Integer, Integer> (un nodo y dos Integer
+ * por entrada), como la generación de los avisos del DueDateScheduler.
+ *
+ * No es thread-safe.
+ */
+final class IntIntMap {
+
+    // Clave de las posiciones vacías (no es un id válido)
+    private static final int LIBRE = Integer.MIN_VALUE;
+
+    private static final int CAPACIDAD_INICIAL = 16;
+
+    private int[] claves = nuevasClaves(CAPACIDAD_INICIAL);
+    private int[] valores = new int[CAPACIDAD_INICIAL];
+    private int tamaño;
+
+    int size() {
+        return tamaño;
+    }
+
+    // Valor de la clave, o porDefecto si no está
+    int get(int clave, int porDefecto) {
+        int i = posicion(clave);
+        return claves[i] == LIBRE ? porDefecto : valores[i];
+    }
+
+    void put(int clave, int valor) {
+        if (clave == LIBRE) {
+            throw new IllegalArgumentException("Clave no válida: " + clave);
+        }
+        int i = posicion(clave);
+        if (claves[i] == clave) {
+            valores[i] = valor;
+            return;
+        }
+        // Se mantiene la tabla ocupada como mucho a la mitad
+        if ((tamaño + 1) * 2 > claves.length) {
+            redimensionar(claves.length * 2);
+            i = posicion(clave);
+        }
+        claves[i] = clave;
+        valores[i] = valor;
+        tamaño++;
+    }
+
+    void remove(int clave) {
+        int i = posicion(clave);
+        if (claves[i] == LIBRE) {
+            return;
+        }
+        // Borrado con sondeo lineal: se recolocan las entradas siguientes del mismo racimo
+        int mascara = claves.length - 1;
+        claves[i] = LIBRE;
+        for (int j = (i + 1) & mascara; claves[j] != LIBRE; j = (j + 1) & mascara) {
+            int otra = claves[j];
+            claves[j] = LIBRE;
+            int destino = posicion(otra);
+            claves[destino] = otra;
+            valores[destino] = valores[j];
+        }
+        tamaño--;
+    }
+
+    // Posición de la clave, o la posición libre donde iría
+    private int posicion(int clave) {
+        int mascara = claves.length - 1;
+        int h = clave * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & mascara;
+        while (claves[i] != LIBRE && claves[i] != clave) {
+            i = (i + 1) & mascara;
+        }
+        return i;
+    }
+
+    private void redimensionar(int capacidad) {
+        int[] antiguasClaves = claves;
+        int[] antiguosValores = valores;
+        claves = nuevasClaves(capacidad);
+        valores = new int[capacidad];
+        for (int i = 0; i < antiguasClaves.length; i++) {
+            if (antiguasClaves[i] != LIBRE) {
+                int destino = posicion(antiguasClaves[i]);
+                claves[destino] = antiguasClaves[i];
+                valores[destino] = antiguosValores[i];
+            }
+        }
+    }
+
+    private static int[] nuevasClaves(int capacidad) {
+        int[] nuevas = new int[capacidad];
+        Arrays.fill(nuevas, LIBRE);
+        return nuevas;
+    }
+}
@@ -0,0 +1,221 @@
+package org.example.server;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Clase IntSet
+ *
+ * Conjunto de ids de tareas guardados como int, para los índices del servidor
+ * (TaskIndexes, SearchIndex), que tienen un conjunto por prioridad, fecha o palabra.
+ * Un HashSet<Integer> gasta un nodo y un Integer por id, y más de 150 bytes aunque
+ * solo tenga uno; aquí un id ocupa 4 bytes (8 cuando el conjunto es grande).
+ *
+ * Los conjuntos pequeños (la mayoría: casi cada fecha y muchas palabras son de una
+ * sola tarea) guardan los ids seguidos en el array y se recorren para buscar.
+ * A partir de MAX_LINEAL ids el array pasa a ser una tabla hash de direccionamiento
+ * abierto con sondeo lineal, como la de CompactTaskStore.
+ *
+ * Implementa Set<Integer> para que el QueryPlanner lo recorra como cualquier otro
+ * conjunto; los índices usan los métodos con int para no crear Integer.
+ *
+ * No es thread-safe: se usa dentro de los métodos synchronized del Server.
+ */
+final class IntSet extends AbstractSet<Integer> {
+
+    // Posición vacía de la tabla hash (no es un id válido)
+    private static final int LIBRE = Integer.MIN_VALUE;
+
+    // Tamaño máximo del array recorrido de forma lineal
+    private static final int MAX_LINEAL = 8;
+
+    // Capacidad de la tabla hash al dejar de ser lineal (potencia de 2, ocupada como mucho a la mitad)
+    private static final int CAPACIDAD_HASH = 4 * MAX_LINEAL;
+
+    // Lineal (length <= MAX_LINEAL): ids en [0, tamaño). Hash: ids y posiciones LIBRE
+    private int[] valores = new int[1];
+    private int tamaño;
+
+    /* =========================
+       Operaciones con int
+       ========================= */
+
+    boolean contiene(int id) {
+        if (esLineal()) {
+            return posicionLineal(id) >= 0;
+        }
+        return posicionHash(id) >= 0;
+    }
+
+    boolean añadir(int id) {
+        if (id == LIBRE) {
+            throw new IllegalArgumentException("Id no válido: " + id);
+        }
+        if (contiene(id)) {
+            return false;
+        }
+        if (esLineal()) {
+            if (tamaño < valores.length) {
+                valores[tamaño++] = id;
+                return true;
+            }
+            if (valores.length < MAX_LINEAL) {
+                valores = Arrays.copyOf(valores, Math.min(valores.length * 2, MAX_LINEAL));
+                valores[tamaño++] = id;
+                return true;
+            }
+            redimensionar(CAPACIDAD_HASH);
+        } else if ((tamaño + 1) * 2 > valores.length) {
+            redimensionar(valores.length * 2);
+        }
+        colocar(valores, id);
+        tamaño++;
+        return true;
+    }
+
+    boolean quitar(int id) {
+        if (esLineal()) {
+            int i = posicionLineal(id);
+            if (i < 0) {
+                return false;
+            }
+            valores[i] = valores[--tamaño];
+            return true;
+        }
+        int i = posicionHash(id);
+        if (i < 0) {
+            return false;
+        }
+        // Borrado con sondeo lineal: se recolocan las entradas siguientes del mismo racimo
+        int mascara = valores.length - 1;
+        valores[i] = LIBRE;
+        for (int j = (i + 1) & mascara; valores[j] != LIBRE; j = (j + 1) & mascara) {
+            int otro = valores[j];
+            valores[j] = LIBRE;
+            colocar(valores, otro);
+        }
+        tamaño--;
+        return true;
+    }
+
+    /* =========================
+       Operaciones de Set
+       ========================= */
+
+    @Override
+    public int size() {
+        return tamaño;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Integer id && contiene(id);
+    }
+
+    @Override
+    public boolean add(Integer id) {
+        return añadir(id);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Integer id && quitar(id);
+    }
+
+    @Override
+    public Iterator<Integer> iterator() {
+        return new Iterator<>() {
+            private final boolean lineal = esLineal();
+            private int siguiente = avanzar(0);
+
+            private int avanzar(int desde) {
+                if (lineal) {
+                    return desde;
+                }
+                while (desde < valores.length && valores[desde] == LIBRE) {
+                    desde++;
+                }
+                return desde;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return siguiente < (lineal ? tamaño : valores.length);
+            }
+
+            @Override
+            public Integer next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int id = valores[siguiente];
+                siguiente = avanzar(siguiente + 1);
+                return id;
+            }
+        };
+    }
+
+    /* =========================
+       Métodos auxiliares
+       ========================= */
+
+    private boolean esLineal() {
+        return valores.length <= MAX_LINEAL;
+    }
+
+    private int posicionLineal(int id) {
+        for (int i = 0; i < tamaño; i++) {
+            if (valores[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int posicionHash(int id) {
+        int mascara = valores.length - 1;
+        for (int i = posicionInicial(id, valores.length); ; i = (i + 1) & mascara) {
+            if (valores[i] == id) {
+                return i;
+            }
+            if (valores[i] == LIBRE) {
+                return -1;
+            }
+        }
+    }
+
+    private static int posicionInicial(int id, int capacidad) {
+        // Mezcla los bits para que los ids consecutivos no formen racimos
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (capacidad - 1);
+    }
+
+    private static void colocar(int[] tabla, int id) {
+        int mascara = tabla.length - 1;
+        int i = posicionInicial(id, tabla.length);
+        while (tabla[i] != LIBRE) {
+            i = (i + 1) & mascara;
+        }
+        tabla[i] = id;
+    }
+
+    // Pasa los ids a una tabla hash nueva (desde el array lineal o desde la tabla anterior)
+    private void redimensionar(int capacidad) {
+        int[] nueva = new int[capacidad];
+        Arrays.fill(nueva, LIBRE);
+        if (esLineal()) {
+            for (int i = 0; i < tamaño; i++) {
+                colocar(nueva, valores[i]);
+            }
+        } else {
+            for (int id : valores) {
+                if (id != LIBRE) {
+                    colocar(nueva, id);
+                }
+            }
+        }
+        valores = nueva;
+    }
+}
@@ -0,0 +1,150 @@
+package org.example.server;
+
+import org.example.common.Task;
+import org.example.common.TaskQuery;
+import org.example.common.TaskQuery.*;
+
+import java.util.*;
+
+/**
+ * Clase QueryPlanner
+ *
+ * Resuelve las consultas TaskQuery sobre las tareas del servidor.
+ *
+ * Antes de recorrer tareas decide de dónde sacar los candidatos:
+ *  - Para un predicado simple usa el índice correspondiente de TaskIndexes
+ *  - Para un AND usa el índice del hijo más selectivo y comprueba el resto sobre esos candidatos
+ *  - Para un OR une los índices de los hijos si todos tienen índice
+ *  - Si no hay índice aplicable, recorre todas las tareas
+ *
+ * Después aplica la condición completa con TaskQuery.seleccionar, que si hay orden y límite
+ * mantiene solo los K mejores en un montículo en lugar de ordenar todo el resultado.
+ *
+ * No es thread-safe: el Server lo usa dentro de sus métodos synchronized.
+ */
+public class QueryPlanner {
+
+    /**
+     * Candidatos obtenidos de los índices: grupos de ids cuya unión contiene
+     * todas las tareas que pueden cumplir la condición.
+     */
+    private record Plan(List<Collection<Integer>> grupos, boolean repetidos) {
+
+        // Cuenta los candidatos, dejando de contar al superar el tope
+        long contar(long tope) {
+            long total = 0;
+            for (Collection<Integer> grupo : grupos) {
+                total += grupo.size();
+                if (total > tope) break;
+            }
+            return total;
+        }
+    }
+
+    private final Map<Integer, Task> tasks;
+    private final TaskIndexes indices;
+
+    public QueryPlanner(Map<Integer, Task> tasks, TaskIndexes indices) {
+        this.tasks = tasks;
+        this.indices = indices;
+    }
+
+    /**
+     * Ejecuta la consulta y devuelve las tareas que la cumplen,
+     * ordenadas y limitadas según se indique.
+     */
+    public List<Task> ejecutar(TaskQuery query) {
+        Plan plan = planificar(query.getWhere());
+        Iterable<Task> origen = plan == null ? tasks.values() : tareasDe(plan);
+        return query.seleccionar(origen);
+    }
+
+    /**
+     * Comprueba que la consulta tiene sentido antes de ejecutarla.
+     * Devuelve el mensaje de error para el cliente, o null si es válida.
+     */
+    public static String validar(TaskQuery query) {
+        if (query.getLimit() != null && query.getLimit() <= 0) {
+            return "El límite de resultados debe ser mayor que 0";
+        }
+        return validar(query.getWhere());
+    }
+
+    private static String validar(Condition condicion) {
+        if (condicion == null) {
+            return "Condición de la consulta vacía";
+        }
+        if (condicion instanceof DueBetween d && d.from() != null && d.to() != null && d.from().after(d.to())) {
+            return "Rango de fechas no válido: el inicio es posterior al final";
+        }
+        List<Condition> hijos = condicion instanceof And and ? and.conditions()
+                : condicion instanceof Or or ? or.conditions() : List.of();
+        for (Condition hijo : hijos) {
+            String error = validar(hijo);
+            if (error != null) {
+                return error;
+            }
+        }
+        return null;
+    }
+
+    /* =========================
+       Planificación
+       ========================= */
+
+    // Devuelve los candidatos según los índices, o null si hay que recorrer todas las tareas
+    private Plan planificar(Condition condicion) {
+        if (condicion instanceof TaskQuery.Priority p) {
+            return new Plan(List.of(indices.conPrioridad(p.value())), false);
+        }
+        if (condicion instanceof Completed c) {
+            return new Plan(List.of(indices.conCompletada(c.value())), false);
+        }
+        if (condicion instanceof HasFile f) {
+            return new Plan(List.of(indices.conFichero(f.value())), false);
+        }
+        if (condicion instanceof DueBetween d) {
+            return new Plan(new ArrayList<>(indices.conVencimientoEntre(d.from(), d.to())), false);
+        }
+        if (condicion instanceof And and) {
+            // Se elige el hijo con menos candidatos
+            Plan mejor = null;
+            long tamañoMejor = Long.MAX_VALUE;
+            for (Condition hijo : and.conditions()) {
+                Plan plan = planificar(hijo);
+                if (plan == null) continue;
+                long tamaño = plan.contar(tamañoMejor);
+                if (tamaño < tamañoMejor) {
+                    mejor = plan;
+                    tamañoMejor = tamaño;
+                }
+            }
+            return mejor;
+        }
+        if (condicion instanceof Or or) {
+            // Solo se puede usar índice si todos los hijos lo tienen
+            List<Collection<Integer>> grupos = new ArrayList<>();
+            for (Condition hijo : or.conditions()) {
+                Plan plan = planificar(hijo);
+                if (plan == null) return null;
+                grupos.addAll(plan.grupos());
+            }
+            return new Plan(grupos, or.conditions().size() > 1);
+        }
+        return null;
+    }
+
+    // Recorre las tareas de los candidatos (sin repetir si el plan puede tener duplicados)
+    private Iterable<Task> tareasDe(Plan plan) {
+        List<Task> tareas = new ArrayList<>();
+        Set<Integer> vistas = plan.repetidos() ? new HashSet<>() : null;
+        for (Collection<Integer> grupo : plan.grupos()) {
+            for (Integer id : grupo) {
+                if (vistas != null && !vistas.add(id)) continue;
+                Task task = tasks.get(id);
+                if (task != null) tareas.add(task);
+            }
+        }
+        return tareas;
+    }
+}
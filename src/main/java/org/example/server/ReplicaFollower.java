@@ -0,0 +1,186 @@
+package org.example.server;
+
+import org.example.common.Message;
+import org.example.common.Message.Type;
+import org.example.common.ReplicationEntry;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Clase ReplicaFollower
+ *
+ * Hilo de una réplica de solo lectura: se conecta al primario, le pide los cambios
+ * desde el último que ha aplicado y los aplica en el mismo orden. La replicación es
+ * asíncrona: el primario no espera a las réplicas para responder a sus clientes.
+ *
+ * Para saber si las lecturas son recientes, el primario envía un latido tras cada
+ * grupo de cambios (o cada medio segundo si no hay cambios). Si al llegar el latido
+ * la réplica ya ha aplicado todo lo que indica, en ese momento estaba al día; el
+ * desfase es el tiempo transcurrido desde entonces.
+ *
+ * Si la conexión se cae, se reintenta cada segundo desde el último cambio aplicado.
+ * Si el primario deja de responder sin cerrar la conexión (se cae la máquina o la red),
+ * la falta de latidos se detecta con el timeout de lectura del socket y también se reconecta.
+ *
+ * Para probarlo en una sola máquina:
+ *   java -Dtareas.puerto=5051 -Dtareas.directorio=primario org.example.server.Server
+ *   java -Dtareas.puerto=5052 -Dtareas.directorio=replica -Dtareas.replicaDe=localhost:5051 org.example.server.Server
+ *   java -Dtareas.host=localhost -Dtareas.puerto=5051 -Dtareas.replica=localhost:5052 org.example.Main
+ * y para promover la réplica basta con enviarle un mensaje PROMOTE.
+ */
+public class ReplicaFollower implements Runnable {
+
+    // Espera entre reintentos de conexión con el primario
+    private static final long ESPERA_RECONEXION_MS = 1000;
+
+    // Tiempo sin recibir nada del primario tras el que se da por perdida la conexión
+    // (el primario envía un latido cada medio segundo; -Dtareas.esperaPrimarioMs)
+    private static final long ESPERA_PRIMARIO_MS = Long.getLong("tareas.esperaPrimarioMs", 3000);
+
+    // Hasta el primer mensaje se espera más: el primario puede estar cargando su instantánea
+    // antes de poder enviar la copia completa
+    private static final long ESPERA_PRIMER_MENSAJE_MS = 120 * 1000;
+
+    private final String primario;
+
+    private volatile boolean activo = true;
+    private volatile Socket socket;
+
+    // Registro del primario que se está siguiendo (null = ninguno todavía) y último cambio aplicado
+    private Long epoca;
+    private long aplicado;
+
+    // Momento en que la réplica estaba al día por última vez (0 = nunca)
+    private volatile long alDiaDesde;
+
+    public ReplicaFollower(String primario) {
+        this.primario = primario;
+    }
+
+    @Override
+    public void run() {
+        while (activo) {
+            try {
+                seguir();
+            } catch (IOException | ClassNotFoundException e) {
+                if (activo) {
+                    System.out.println("Conexión con el primario " + primario + " perdida: " + e);
+                }
+            }
+            try {
+                Thread.sleep(ESPERA_RECONEXION_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Milisegundos desde la última vez que la réplica estaba al día (Long.MAX_VALUE si nunca lo ha estado)
+    public long getDesfaseMs() {
+        long desde = alDiaDesde;
+        return desde == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - desde;
+    }
+
+    // Deja de seguir al primario (al promover la réplica)
+    public void detener() {
+        activo = false;
+        Socket actual = socket;
+        if (actual != null) {
+            try {
+                actual.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void seguir() throws IOException, ClassNotFoundException {
+        int separador = primario.lastIndexOf(':');
+        try (Socket conexion = new Socket()) {
+            conexion.connect(new InetSocketAddress(primario.substring(0, separador),
+                    Integer.parseInt(primario.substring(separador + 1))), (int) ESPERA_PRIMARIO_MS);
+            socket = conexion;
+            if (!activo) {
+                return;
+            }
+            conexion.setSoTimeout((int) ESPERA_PRIMER_MENSAJE_MS);
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(conexion.getOutputStream()));
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(conexion.getInputStream(), 64 * 1024));
+
+            Message peticion = new Message(Type.REPLICATE);
+            peticion.setReplicationEpoch(epoca);
+            peticion.setReplicationSeq(aplicado);
+            out.writeObject(peticion);
+            out.flush();
+            System.out.println("Siguiendo al primario " + primario + " desde el cambio " + aplicado);
+
+            boolean primero = true;
+            while (activo) {
+                Message message = (Message) in.readObject();
+                if (primero) {
+                    conexion.setSoTimeout((int) ESPERA_PRIMARIO_MS);
+                    primero = false;
+                }
+                ReplicationEntry cambio = message.getReplicationEntry();
+                if (message.getType() != Type.REPLICATE || cambio == null) {
+                    throw new IOException("Mensaje de replicación no válido: " + message.getType());
+                }
+                aplicar(cambio, message, in);
+            }
+        }
+    }
+
+    private void aplicar(ReplicationEntry cambio, Message message, ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        switch (cambio.tipo()) {
+            case SNAPSHOT_START -> {
+                epoca = message.getReplicationEpoch();
+                Server.aplicarReplicado(this, cambio);
+            }
+            case ATTACH -> recibirAdjunto(cambio, in);
+            case SNAPSHOT_END, HEARTBEAT -> {
+                if (cambio.seq() <= aplicado) {
+                    alDiaDesde = System.currentTimeMillis();
+                }
+            }
+            default -> Server.aplicarReplicado(this, cambio);
+        }
+        aplicado = cambio.seq();
+    }
+
+    /**
+     * Asigna a la tarea el contenido del adjunto. Tras el cambio ATTACH llegan los bloques del
+     * archivo; si la réplica ya tiene ese contenido, los bloques se descartan.
+     */
+    private void recibirAdjunto(ReplicationEntry cambio, ObjectInputStream in) throws IOException, ClassNotFoundException {
+        boolean enlazado = FileManager.enlazarExistente(cambio.taskId(), cambio.hash(), cambio.extension());
+        Message fin;
+        try (FileManager.Subida subida = enlazado ? null
+                : FileManager.iniciarSubida(cambio.taskId(), cambio.extension(), cambio.hash())) {
+            while (true) {
+                Message bloque = (Message) in.readObject();
+                if (bloque.isLastBlock()) {
+                    fin = bloque;
+                    break;
+                }
+                if (subida != null) {
+                    subida.escribir(bloque.getDataBlock(), bloque.getDataBlock().length);
+                }
+            }
+            if (subida != null && !fin.isSkipTransfer() && fin.getErrorMessage() == null) {
+                subida.completar();
+                enlazado = true;
+            }
+        }
+
+        if (enlazado) {
+            Server.adjuntoAsignado(cambio.taskId());
+        } else if (fin.isSkipTransfer()) {
+            // El primario cree que ya lo tenemos pero se ha borrado: se pide una copia completa
+            epoca = null;
+            throw new IOException("Falta el contenido " + cambio.hash() + ", se pide una copia completa");
+        }
+        // Si el primario ya no tiene el contenido, la tarea se ha borrado y llegará su DELETE
+    }
+}
@@ -0,0 +1,100 @@
+package org.example.server;
+
+import org.example.common.ReplicationEntry;
+import org.example.common.Task;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Clase ReplicationLog
+ *
+ * Registro en memoria de los últimos cambios de las tareas, del que leen las réplicas.
+ * El Server añade un cambio en cada modificación (con su cerrojo tomado, así que el
+ * orden del registro es el orden real de los cambios) y cada réplica conectada lo
+ * recorre desde el último cambio que ha aplicado.
+ *
+ * Solo se guardan los últimos cambios: una réplica que se queda más atrás (o que
+ * conoce el registro de otra ejecución del primario, con otra época) recibe una
+ * copia completa de las tareas y continúa desde ahí.
+ */
+public class ReplicationLog {
+
+    // Número máximo de cambios guardados
+    private static final int CAPACIDAD = Integer.getInteger("tareas.replicacionLog", 100_000);
+
+    // Identifica esta ejecución del registro: los números de cambio solo valen dentro de una época
+    private final long epoca = new SecureRandom().nextLong() & Long.MAX_VALUE;
+
+    private final ArrayDeque<ReplicationEntry> entradas = new ArrayDeque<>();
+
+    // Número del último cambio registrado
+    private long seq;
+
+    public long getEpoca() {
+        return epoca;
+    }
+
+    public synchronized long getSeq() {
+        return seq;
+    }
+
+    public synchronized void registrarPut(Task task) {
+        añadir(ReplicationEntry.put(++seq, task));
+    }
+
+    public synchronized void registrarArchive(Task task) {
+        añadir(ReplicationEntry.archive(++seq, task));
+    }
+
+    public synchronized void registrarDelete(int taskId) {
+        añadir(ReplicationEntry.delete(++seq, taskId));
+    }
+
+    public synchronized void registrarAttach(int taskId, String hash, String extension) {
+        añadir(ReplicationEntry.attach(++seq, taskId, hash, extension));
+    }
+
+    private void añadir(ReplicationEntry entrada) {
+        if (entradas.size() == CAPACIDAD) {
+            entradas.removeFirst();
+        }
+        entradas.addLast(entrada);
+        // Despierta a las réplicas que esperan cambios nuevos
+        notifyAll();
+    }
+
+    /**
+     * Cambios posteriores a "desde".
+     * Si no hay ninguno, espera hasta esperaMs a que llegue alguno (y puede devolver una lista vacía).
+     * Devuelve null si los cambios siguientes a "desde" ya no están en el registro.
+     */
+    public synchronized List<ReplicationEntry> esperarDesde(long desde, long esperaMs) throws InterruptedException {
+        if (desde > seq) {
+            return null;
+        }
+        if (desde == seq) {
+            wait(esperaMs);
+        }
+        if (desde == seq) {
+            return List.of();
+        }
+        long primera = entradas.peekFirst().seq();
+        if (desde + 1 < primera) {
+            return null;
+        }
+
+        // Las réplicas suelen ir cerca del final: se recorre el registro desde el último cambio
+        List<ReplicationEntry> resultado = new ArrayList<>((int) (seq - desde));
+        Iterator<ReplicationEntry> it = entradas.descendingIterator();
+        for (long i = seq; i > desde; i--) {
+            resultado.add(it.next());
+        }
+        Collections.reverse(resultado);
+        return resultado;
+    }
+}
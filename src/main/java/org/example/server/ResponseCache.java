@@ -0,0 +1,167 @@
+package org.example.server;
+
+import org.example.common.Message;
+import org.example.common.TaskQuery;
+import org.example.common.TaskQuery.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Clase ResponseCache
+ *
+ * Caché de respuestas LIST y FILTER ya serializadas.
+ * Cuando muchos clientes piden la misma lista, la respuesta se serializa una
+ * sola vez y los mismos bytes se escriben en cada socket, de forma que el coste
+ * de serialización no crece con el número de lectores.
+ *
+ * Las entradas se guardan por clave normalizada de la petición y valen solo para
+ * la versión del almacén de tareas con la que se calcularon: cualquier
+ * modificación de las tareas cambia la versión y vacía la caché.
+ */
+public class ResponseCache {
+
+    // Tamaño máximo total de las respuestas guardadas
+    private static final long MAX_BYTES = Long.getLong("tareas.cacheRespuestasBytes", 64L * 1024 * 1024);
+
+    // Respuestas guardadas, de la menos a la más usada recientemente
+    private final LinkedHashMap<String, byte[]> entradas = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Versión del almacén de tareas a la que corresponden las entradas
+    private long version;
+
+    private long bytesTotales;
+
+    /**
+     * Devuelve la respuesta serializada para la clave, calculándola si no está guardada.
+     *
+     * @param version  versión del almacén leída ANTES de calcular la respuesta
+     * @param calcular construye la respuesta si no está en la caché
+     */
+    public byte[] obtener(String clave, long version, Supplier<Message> calcular) throws IOException {
+        synchronized (this) {
+            if (version == this.version) {
+                byte[] guardada = entradas.get(clave);
+                if (guardada != null) {
+                    return guardada;
+                }
+            }
+        }
+
+        // Se calcula y serializa fuera del cerrojo para no bloquear a otros clientes
+        Message respuesta = calcular.get();
+        ServerEvents.Serializacion evento = new ServerEvents.Serializacion();
+        evento.begin();
+        byte[] bytes = serializar(respuesta);
+        evento.end();
+        evento.terminar(respuesta.getType().name(), bytes.length, false);
+
+        synchronized (this) {
+            // Si las tareas han cambiado mientras tanto, la respuesta se envía pero no se guarda
+            if (version == this.version && bytes.length <= MAX_BYTES) {
+                byte[] anterior = entradas.put(clave, bytes);
+                bytesTotales += bytes.length - (anterior == null ? 0 : anterior.length);
+                expulsar();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Descarta todas las respuestas guardadas.
+     * Lo llama el Server en cada modificación de las tareas, con la nueva versión.
+     */
+    public synchronized void invalidar(long nuevaVersion) {
+        version = nuevaVersion;
+        entradas.clear();
+        bytesTotales = 0;
+    }
+
+    // Quita las respuestas menos usadas hasta volver al tamaño máximo
+    private void expulsar() {
+        Iterator<byte[]> it = entradas.values().iterator();
+        while (bytesTotales > MAX_BYTES && it.hasNext()) {
+            bytesTotales -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * Serializa un mensaje tal y como lo escribiría un ObjectOutputStream recién
+     * reiniciado, pero sin la cabecera del flujo, para poder copiar los bytes
+     * directamente en el flujo de cualquier cliente (ver ClientHandler.sendSerialized).
+     */
+    static byte[] serializar(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new SinCabecera(bytes)) {
+            oos.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class SinCabecera extends ObjectOutputStream {
+        SinCabecera(OutputStream out) throws IOException {
+            super(out);
+        }
+
+        @Override
+        protected void writeStreamHeader() {
+            // La cabecera ya la ha enviado el flujo del cliente al abrir la conexión
+        }
+    }
+
+    /* =========================
+       Claves normalizadas
+       ========================= */
+
+    /**
+     * Clave de una consulta FILTER.
+     * Dos consultas equivalentes (por ejemplo, los mismos criterios AND en otro
+     * orden) producen la misma clave.
+     */
+    public static String claveDe(TaskQuery query) {
+        return "FILTER " + claveDe(query.getWhere())
+                + " orden=" + query.getSortBy() + (query.isDescending() ? " desc" : "")
+                + " limite=" + query.getLimit();
+    }
+
+    private static String claveDe(Condition condicion) {
+        if (condicion instanceof And and) {
+            return claveDe("AND", and.conditions());
+        }
+        if (condicion instanceof Or or) {
+            return claveDe("OR", or.conditions());
+        }
+        if (condicion instanceof Completed c) {
+            return "completada=" + c.value();
+        }
+        if (condicion instanceof TaskQuery.Priority p) {
+            return "prioridad=" + p.value();
+        }
+        if (condicion instanceof HasFile f) {
+            return "fichero=" + f.value();
+        }
+        if (condicion instanceof DueBetween d) {
+            return "vence=[" + (d.from() == null ? "*" : d.from().getTime())
+                    + "," + (d.to() == null ? "*" : d.to().getTime()) + "]";
+        }
+        throw new IllegalArgumentException("Condición desconocida: " + condicion);
+    }
+
+    private static String claveDe(String operador, List<Condition> hijos) {
+        if (hijos.size() == 1) {
+            return claveDe(hijos.get(0));
+        }
+        // El orden de los hijos no cambia el resultado
+        List<String> claves = new ArrayList<>();
+        for (Condition hijo : hijos) {
+            claves.add(claveDe(hijo));
+        }
+        Collections.sort(claves);
+        return operador + claves;
+    }
+}
@@ -0,0 +1,198 @@
+package org.example.server;
+
+import org.example.common.Task;
+
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * Clase SearchIndex
+ *
+ * Índice invertido sobre las descripciones de las tareas.
+ * Para cada palabra guarda el conjunto de ids de tareas que la contienen,
+ * y se mantiene al día cada vez que se añade o se quita una tarea, de forma
+ * que una búsqueda solo visita las tareas que contienen las palabras buscadas.
+ *
+ * Las palabras se guardan en un TreeMap para poder buscar por prefijo
+ * ("inf" encuentra "informe" e "informática").
+ *
+ * No es thread-safe: el Server lo usa siempre dentro de sus métodos synchronized.
+ */
+public class SearchIndex {
+
+    // Longitud mínima de una palabra de la consulta para buscarla también como prefijo
+    private static final int MIN_PREFIJO = 2;
+
+    // Peso de una coincidencia exacta frente a una coincidencia por prefijo
+    private static final double PESO_EXACTA = 2.0;
+    private static final double PESO_PREFIJO = 1.0;
+
+    // palabra -> ids de las tareas cuya descripción la contiene (IntSet: sin un Integer por id)
+    private final TreeMap<String, IntSet> indice = new TreeMap<>();
+
+    // Número de tareas indexadas, usado para ponderar las palabras poco frecuentes
+    private int numTareas;
+
+    // Añade la descripción de una tarea al índice
+    public void añadir(Task task) {
+        for (String palabra : tokenizar(task.getDescripcion())) {
+            indice.computeIfAbsent(palabra, p -> new IntSet()).añadir(task.getId());
+        }
+        numTareas++;
+    }
+
+    // Quita una tarea del índice
+    public void quitar(Task task) {
+        for (String palabra : tokenizar(task.getDescripcion())) {
+            IntSet ids = indice.get(palabra);
+            if (ids != null) {
+                ids.quitar(task.getId());
+                if (ids.isEmpty()) {
+                    indice.remove(palabra);
+                }
+            }
+        }
+        numTareas--;
+    }
+
+    /**
+     * Busca las tareas cuya descripción contiene todas las palabras de la consulta
+     * (de forma exacta o como prefijo).
+     * Devuelve los ids ordenados por relevancia: las coincidencias exactas y las
+     * palabras poco frecuentes puntúan más.
+     */
+    public List<Integer> buscar(String consulta) {
+        Set<String> palabras = tokenizar(consulta);
+        if (palabras.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // Términos del índice que encajan con cada palabra de la consulta
+        List<List<Map.Entry<String, IntSet>>> porPalabra = new ArrayList<>();
+        List<String> consultadas = new ArrayList<>();
+        for (String palabra : palabras) {
+            List<Map.Entry<String, IntSet>> terminos = terminos(palabra);
+            if (terminos.isEmpty()) {
+                // Alguna palabra no aparece en ninguna tarea
+                return new ArrayList<>();
+            }
+            porPalabra.add(terminos);
+            consultadas.add(palabra);
+        }
+
+        // Se empieza por la palabra más selectiva y el resto solo se comprueba
+        // sobre los candidatos que quedan, sin recorrer sus listas completas
+        Integer[] orden = new Integer[porPalabra.size()];
+        for (int i = 0; i < orden.length; i++) orden[i] = i;
+        Arrays.sort(orden, Comparator.comparingLong(i -> tamaño(porPalabra.get(i))));
+
+        Map<Integer, Double> puntuaciones = new HashMap<>();
+        int primera = orden[0];
+        for (Map.Entry<String, IntSet> termino : porPalabra.get(primera)) {
+            double peso = peso(consultadas.get(primera), termino);
+            for (Integer id : termino.getValue()) {
+                // Si varias palabras de la tarea encajan con el prefijo se queda la mejor
+                puntuaciones.merge(id, peso, Math::max);
+            }
+        }
+
+        for (int k = 1; k < orden.length && !puntuaciones.isEmpty(); k++) {
+            String palabra = consultadas.get(orden[k]);
+            List<Map.Entry<String, IntSet>> terminos = porPalabra.get(orden[k]);
+            Iterator<Map.Entry<Integer, Double>> it = puntuaciones.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Double> candidato = it.next();
+                double mejor = 0;
+                for (Map.Entry<String, IntSet> termino : terminos) {
+                    if (termino.getValue().contiene(candidato.getKey())) {
+                        mejor = Math.max(mejor, peso(palabra, termino));
+                    }
+                }
+                if (mejor == 0) {
+                    it.remove();
+                } else {
+                    candidato.setValue(candidato.getValue() + mejor);
+                }
+            }
+        }
+
+        List<Integer> resultado = new ArrayList<>(puntuaciones.keySet());
+        resultado.sort((a, b) -> {
+            int c = Double.compare(puntuaciones.get(b), puntuaciones.get(a));
+            return c != 0 ? c : Integer.compare(a, b);
+        });
+        return resultado;
+    }
+
+    // Términos del índice que coinciden con la palabra, exacta o como prefijo
+    private List<Map.Entry<String, IntSet>> terminos(String palabra) {
+        if (palabra.length() < MIN_PREFIJO) {
+            IntSet ids = indice.get(palabra);
+            return ids == null ? List.of() : List.of(Map.entry(palabra, ids));
+        }
+        return new ArrayList<>(indice.subMap(palabra, true, palabra + Character.MAX_VALUE, false).entrySet());
+    }
+
+    // Puntuación de un término: las coincidencias exactas y las palabras poco frecuentes pesan más
+    private double peso(String palabra, Map.Entry<String, IntSet> termino) {
+        double base = termino.getKey().equals(palabra) ? PESO_EXACTA : PESO_PREFIJO;
+        return base * Math.log(1.0 + (double) numTareas / termino.getValue().size());
+    }
+
+    private static long tamaño(List<Map.Entry<String, IntSet>> terminos) {
+        long total = 0;
+        for (Map.Entry<String, IntSet> termino : terminos) {
+            total += termino.getValue().size();
+        }
+        return total;
+    }
+
+    /**
+     * Comprueba si una descripción contiene todas las palabras de la consulta (de forma
+     * exacta o como prefijo, igual que buscar), recorriéndola sin usar el índice.
+     * Sirve para las tareas que no están indexadas, como las archivadas.
+     */
+    static boolean contiene(String descripcion, Set<String> palabras) {
+        if (palabras.isEmpty()) {
+            return false;
+        }
+        Set<String> propias = tokenizar(descripcion);
+        for (String palabra : palabras) {
+            boolean encontrada = propias.contains(palabra);
+            if (!encontrada && palabra.length() >= MIN_PREFIJO) {
+                for (String propia : propias) {
+                    if (propia.startsWith(palabra)) {
+                        encontrada = true;
+                        break;
+                    }
+                }
+            }
+            if (!encontrada) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Divide un texto en palabras normalizadas:
+     * minúsculas, sin tildes y separadas por cualquier carácter que no sea letra o número.
+     */
+    static Set<String> tokenizar(String texto) {
+        Set<String> palabras = new LinkedHashSet<>();
+        if (texto == null) {
+            return palabras;
+        }
+
+        String normalizado = Normalizer.normalize(texto, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}", "")
+                .toLowerCase(Locale.ROOT);
+
+        for (String palabra : normalizado.split("[^\\p{L}\\p{N}]+")) {
+            if (!palabra.isEmpty()) {
+                palabras.add(palabra);
+            }
+        }
+        return palabras;
+    }
+}
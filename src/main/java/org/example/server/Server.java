@@ -2,34 +2,178 @@ package org.example.server;
     import java.io.IOException;
     import java.net.ServerSocket;
     import java.net.Socket;
+    import java.util.ArrayList;
+    import java.util.BitSet;
+    import java.util.Collection;
+    import java.util.Comparator;
     import java.util.HashMap;
+    import java.util.List;
     import java.util.Map;
+    import java.util.Set;
+    import java.util.concurrent.ConcurrentHashMap;
     import java.util.concurrent.ExecutorService;
     import java.util.concurrent.Executors;
+    import java.util.concurrent.ScheduledExecutorService;
+    import java.util.concurrent.TimeUnit;
+    import java.util.function.Consumer;
+    import java.util.function.Predicate;
+    import java.util.function.UnaryOperator;
     
+    import org.example.common.ConsistentHashRing;
+    import org.example.common.Message;
+    import org.example.common.Message.Event;
+    import org.example.common.Message.Type;
+    import org.example.common.ReplicationEntry;
     import org.example.common.Task;
+    import org.example.common.TaskQuery;
+    import org.example.common.TaskStats;
     
 public class Server {
 
     // Usamos el puerto 5050 para el cliente y el servidor, como en las practicas
-    private static final int PUERTO = 5050;
+    // (se puede cambiar con -Dtareas.puerto para arrancar varios servidores en la misma máquina)
+    private static final int PUERTO = Integer.getInteger("tareas.puerto", 5050);
+
+    // Reparto de tareas entre varios servidores (null si este servidor tiene todas):
+    // -Dtareas.nodos=host:puerto,host:puerto,... con todos los servidores del grupo
+    // -Dtareas.nodo=host:puerto con el nombre de este servidor dentro de la lista
+    private static final ConsistentHashRing anillo = System.getProperty("tareas.nodos") == null
+            ? null : ConsistentHashRing.deLista(System.getProperty("tareas.nodos"));
+    private static final String NODO = System.getProperty("tareas.nodo", "localhost:" + PUERTO);
 
    // HashMap para guardar las tareas (id y tarea)
-    private static Map<Integer, Task> tasks = new HashMap<>();
+    // Con -Dtareas.almacenCompacto=true se usa un almacén por columnas que ocupa mucha menos memoria
+    private static final boolean ALMACEN_COMPACTO = Boolean.getBoolean("tareas.almacenCompacto");
+    private static Map<Integer, Task> tasks = ALMACEN_COMPACTO ? new CompactTaskStore() : new HashMap<>();
+
+    // Índice invertido de las descripciones para las búsquedas por texto
+    private static final SearchIndex indiceBusqueda = new SearchIndex();
+
+    // Índices secundarios y planificador de las consultas FILTER
+    private static final TaskIndexes indices = new TaskIndexes();
+    private static final QueryPlanner planner = new QueryPlanner(tasks, indices);
+
+    // Contadores agregados para las peticiones STATS
+    private static final TaskCounters contadores = new TaskCounters();
+
+    // Versión de las tareas: aumenta con cada modificación e invalida las respuestas cacheadas
+    private static long version = 0;
+    private static final ResponseCache cacheRespuestas = new ResponseCache();
+
+    // Tareas archivadas: las completadas cuya fecha de vencimiento pasó hace más de
+    // tareas.archivoEdadMs salen de la memoria y se guardan en disco (un valor negativo lo desactiva)
+    private static final TaskArchive archivo = new TaskArchive();
+    private static final long EDAD_ARCHIVO_MS = Long.getLong("tareas.archivoEdadMs", 30L * 24 * 60 * 60 * 1000);
+    private static final long PERIODO_ARCHIVO_S = Long.getLong("tareas.archivoPeriodoS", 60);
+    // Tareas que se archivan en cada toma del cerrojo, para no bloquear a los clientes mucho tiempo
+    private static final int LOTE_ARCHIVO = 1000;
+    private static final ScheduledExecutorService archivador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+        Thread hilo = new Thread(tarea, "archivador");
+        hilo.setDaemon(true);
+        return hilo;
+    });
 
     // Para asignar Ids a las tareas
-    private static int taskIdContador = 1;
+    // (las tareas archivadas se conservan entre ejecuciones, así que sus ids no se repiten)
+    private static int taskIdContador = archivo.getMaxId() + 1;
+
+    // Registro de los cambios, del que leen las réplicas
+    private static final ReplicationLog registro = new ReplicationLog();
+
+    // Con -Dtareas.replicaDe=host:puerto este servidor es una réplica de solo lectura de ese primario
+    private static final String REPLICA_DE = System.getProperty("tareas.replicaDe");
+
+    // Hilo que sigue al primario (null si este servidor es el primario o ya se ha promovido)
+    private static volatile ReplicaFollower seguidor;
+
+    // Instantánea de las tareas y adjuntos en disco, que se guarda cada tareas.estadoPeriodoS segundos
+    // si ha habido cambios y al cerrar el servidor (si se cae, se pierden los cambios posteriores)
+    private static final long PERIODO_ESTADO_S = Long.getLong("tareas.estadoPeriodoS", 30);
+    private static long versionGuardada = 0;
+    private static final Object guardandoEstado = new Object();
+
+    // Al arrancar, el servidor acepta clientes en cuanto mapea la instantánea y un hilo carga las
+    // tareas por lotes; las que se piden por id se leen antes de su turno.
+    // Con -Dtareas.cargaPerezosa=false se cargan todas antes de aceptar clientes
+    private static final boolean CARGA_PEREZOSA = Boolean.parseBoolean(System.getProperty("tareas.cargaPerezosa", "true"));
+    private static final int LOTE_CARGA = 10000;
+
+    // Instantánea que se está cargando (null cuando todas las tareas están en memoria)
+    // y posiciones de la instantánea ya cargadas (o borradas antes de cargarse)
+    private static TaskSnapshot pendiente;
+    private static BitSet cargadas;
 
     // Pool de hilos para manejar multiples clientes
     private static ExecutorService pool = Executors.newCachedThreadPool();
 
+    // Clientes conectados, revisados periódicamente para cerrar conexiones inactivas o colgadas
+    private static final Set<ClientHandler> clientes = ConcurrentHashMap.newKeySet();
+
+    // Hilo vigilante que comprueba los límites de tiempo de los clientes
+    private static final ScheduledExecutorService vigilante = Executors.newSingleThreadScheduledExecutor();
+    private static final long PERIODO_VIGILANCIA_S = 5;
+
+    // El vigilante muestra también el estado de la caché de adjuntos cada tareas.cachePeriodoS segundos,
+    // solo si ha cambiado desde la última vez
+    private static final long PERIODO_CACHE_S = Long.getLong("tareas.cachePeriodoS", 60);
+    private static String ultimoEstadoCache;
+
+    // Clientes que han pedido recibir los avisos de vencimiento
+    private static final Set<ClientHandler> suscriptores = ConcurrentHashMap.newKeySet();
+
+    // Planificador de avisos de vencimiento de las tareas pendientes
+    private static final DueDateScheduler planificador = new DueDateScheduler();
+
     // METODO MAIN DEL SERVER
     public static void main(String[] args) {
         // Iniciar el servidor
+        long inicio = System.nanoTime();
         System.out.println("Iniciando servidor... puerto: " + PUERTO);
+        if (anillo != null) {
+            if (!anillo.getNodos().contains(NODO)) {
+                System.out.println("El nodo " + NODO + " no está en tareas.nodos " + anillo.getNodos());
+                return;
+            }
+            System.out.println("Partición del nodo " + NODO + " de " + anillo.getNodos());
+        }
+
+        // Tareas y adjuntos de la ejecución anterior
+        restaurarEstado(inicio);
+        archivador.scheduleWithFixedDelay(Server::guardarEstado, PERIODO_ESTADO_S, PERIODO_ESTADO_S, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(Server::guardarEstado, "guardar-estado"));
+
+        if (REPLICA_DE != null) {
+            System.out.println("Réplica de solo lectura de " + REPLICA_DE);
+            seguidor = new ReplicaFollower(REPLICA_DE);
+            Thread hiloSeguidor = new Thread(seguidor, "replica-" + REPLICA_DE);
+            hiloSeguidor.setDaemon(true);
+            hiloSeguidor.start();
+        }
+
+        // El vigilante revisa cada pocos segundos los clientes conectados
+        vigilante.scheduleAtFixedRate(Server::revisarClientes,
+                PERIODO_VIGILANCIA_S, PERIODO_VIGILANCIA_S, TimeUnit.SECONDS);
+        ultimoEstadoCache = FileManager.getCache().toString();
+        vigilante.scheduleAtFixedRate(Server::mostrarCacheAdjuntos,
+                PERIODO_CACHE_S, PERIODO_CACHE_S, TimeUnit.SECONDS);
+
+        // El archivador revisa periódicamente qué tareas completadas se pueden archivar
+        if (EDAD_ARCHIVO_MS >= 0) {
+            archivador.scheduleWithFixedDelay(Server::archivarAntiguas,
+                    PERIODO_ARCHIVO_S, PERIODO_ARCHIVO_S, TimeUnit.SECONDS);
+        }
+        if (archivo.size() > 0) {
+            System.out.println("Tareas archivadas: " + archivo.size());
+        }
+
+        // Hilo que emite los avisos de vencimiento
+        Thread hiloPlanificador = new Thread(planificador, "planificador-vencimientos");
+        hiloPlanificador.setDaemon(true);
+        hiloPlanificador.start();
 
         // Servidor escuchando por el puerto 5050 y creacion de server socket
         try (ServerSocket serverSocket = new ServerSocket(PUERTO)) {
+            System.out.println("Aceptando clientes (arranque en " + milisDesde(inicio) + " ms)");
 
             // Bucle infinito porque el servido debe estar siempre escuchando
             while (true) {
@@ -44,38 +188,621 @@ public class Server {
         }
     }
 
+    // METODOS PARA GESTIONAR LOS CLIENTES
+
+    public static void registrarCliente(ClientHandler cliente) {
+        clientes.add(cliente);
+    }
+
+    public static void eliminarCliente(ClientHandler cliente) {
+        clientes.remove(cliente);
+        suscriptores.remove(cliente);
+    }
+
+    public static void suscribir(ClientHandler cliente) {
+        suscriptores.add(cliente);
+    }
+
+    // Registra un aviso de vencimiento y lo reenvía a los clientes suscritos
+    public static void publicarEvento(Event tipo, Task task) {
+        System.out.println("Aviso " + tipo + ": " + task);
+
+        if (tipo == Event.OVERDUE) {
+            anotarVencida(task.getId());
+        }
+
+        Message evento = new Message(Type.EVENT);
+        evento.setEvent(tipo);
+        evento.setTask(task);
+
+        // Cada envío va en su propio hilo para que un cliente lento no retrase a los demás
+        for (ClientHandler cliente : suscriptores) {
+            pool.execute(() -> cliente.enviarEvento(evento));
+        }
+    }
+
+    // Cierra las conexiones que han superado alguno de sus límites de tiempo
+    private static void revisarClientes() {
+        long ahora = System.currentTimeMillis();
+        for (ClientHandler cliente : clientes) {
+            cliente.comprobarTiempos(ahora);
+        }
+    }
+
+    // Solo lo llama el hilo vigilante
+    private static void mostrarCacheAdjuntos() {
+        String estado = FileManager.getCache().toString();
+        if (!estado.equals(ultimoEstadoCache)) {
+            ultimoEstadoCache = estado;
+            System.out.println("Caché de adjuntos: " + estado);
+        }
+    }
+
     // METODOS PARA GESTIONAR LAS TAREAS
     
     // Tenemos que usar synchronized para evitar problemas de concurrencia
     // (como que varios clientes creen y borren tareas al mismo tiempo)
 
     // Generar id unico para cada tarea
+    // Si hay varios servidores, solo se usan los ids de la partición de este
+    // (así el id de una tarea indica siempre qué servidor la tiene)
     public static synchronized int generarTaskId() {
-        return taskIdContador++;
+        int id = taskIdContador++;
+        while (anillo != null && !anillo.nodoDe(id).equals(NODO)) {
+            id = taskIdContador++;
+        }
+        return id;
     }
     
     // Añadir una nueva tarea
     public static synchronized void añadirTask(Task task) {
+        añadirTask(task, false);
+    }
+
+    // Una tarea recuperada (recibida del primario) que ya ha vencido no vuelve a avisar
+    private static void añadirTask(Task task, boolean recuperada) {
+        insertar(task, recuperada);
+        registrarCambio();
+        registro.registrarPut(task);
+    }
+
+    /**
+     * Pone la tarea en el mapa, los índices, los contadores y el planificador.
+     * Las tareas recuperadas (de la instantánea o del primario) que ya han vencido se anotan
+     * como vencidas sin pasar por el planificador: al arrancar serían un aviso por tarea a la vez.
+     * Devuelve true si la tarea se ha anotado así.
+     */
+    private static boolean insertar(Task task, boolean recuperada) {
         tasks.put(task.getId(), task);
+        indiceBusqueda.añadir(task);
+        indices.añadir(task);
+        contadores.añadir(task);
+        if (!recuperada) {
+            planificador.programar(task);
+            return false;
+        }
+        boolean vencida = planificador.restaurar(task);
+        if (vencida) {
+            contadores.marcarVencida(task.getId());
+        }
+        return vencida;
     }
 
-    // Quitar una tarea por su id
-    public static synchronized void quitarTask(int id) {
+    // Quitar una tarea por su id, solo si sigue en la versión esperada (null = cualquier versión)
+    // Devuelve false si la tarea no existe
+    public static synchronized boolean quitarTask(int id, Long versionEsperada) throws VersionConflictException {
+        cargar(id);
+        Task task = tasks.get(id);
+        if (task == null) {
+            return false;
+        }
+        comprobarVersion(task, versionEsperada);
         tasks.remove(id);
+        indiceBusqueda.quitar(task);
+        indices.quitar(task);
+        contadores.quitar(task);
+        registrarCambio();
+        registro.registrarDelete(id);
+        // El archivo adjunto se borra si ninguna otra tarea comparte su contenido
+        FileManager.liberar(id);
+        planificador.cancelar(id);
+        return true;
     }
 
     // Get por su id
+    // Las tareas son inmutables, así que se pueden usar fuera del cerrojo
     public static synchronized Task getTask(int id) {
+        cargar(id);
         return tasks.get(id);
     }
 
-    // Se usa para actualizar el estado "completada" de una tarea
-    public static synchronized void actualizarTask(Task task) {
-        tasks.replace(task.getId(), task);
+    // Cambia el estado "completada" de una tarea y reprograma sus avisos
+    // Si se indica versionEsperada y la tarea ya está en otra versión, no se cambia
+    // Devuelve la tarea resultante, o null si no existe
+    public static Task cambiarEstado(int id, boolean completada, Long versionEsperada) throws VersionConflictException {
+        return actualizarTask(id, versionEsperada, task -> task.conCompletada(completada));
+    }
+
+    // Marca si una tarea tiene archivo adjunto
+    public static void marcarFichero(int id, boolean tieneFichero) {
+        try {
+            actualizarTask(id, null, task -> task.conFichero(tieneFichero));
+        } catch (VersionConflictException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Se llama cuando se ha asignado un archivo a la tarea: la marca y anota el adjunto para las réplicas
+    // (el FileManager se consulta dentro del cerrojo del Server, en el mismo orden que al borrar tareas)
+    public static synchronized void adjuntoAsignado(int id) {
+        marcarFichero(id, true);
+        FileManager.Adjunto adjunto = FileManager.getAdjunto(id);
+        if (adjunto != null && tasks.containsKey(id)) {
+            registro.registrarAttach(id, adjunto.hash(), adjunto.extension());
+        }
+        // Aunque la tarea ya tuviera archivo, el adjunto ha cambiado y hay que guardarlo en la instantánea
+        registrarCambio();
+    }
+
+    /**
+     * Actualización condicionada (compare-and-set) de una tarea.
+     * Se comprueba la versión, se calcula la tarea nueva a partir de la actual y se
+     * sustituye, actualizando índices, contadores y avisos según lo que haya cambiado.
+     * Todo ocurre en una sección crítica corta: la tarea que se devuelve es inmutable
+     * y se puede enviar al cliente sin el cerrojo.
+     */
+    private static synchronized Task actualizarTask(int id, Long versionEsperada, UnaryOperator<Task> cambio)
+            throws VersionConflictException {
+        cargar(id);
+        Task actual = tasks.get(id);
+        if (actual == null) {
+            return null;
+        }
+        comprobarVersion(actual, versionEsperada);
+
+        // Si el cambio no altera nada, la versión no aumenta
+        Task nueva = cambio.apply(actual);
+        if (nueva.isCompletada() == actual.isCompletada() && nueva.isTieneFichero() == actual.isTieneFichero()) {
+            return actual;
+        }
+        tasks.put(id, nueva);
+
+        if (nueva.isCompletada() != actual.isCompletada()) {
+            indices.cambiarCompletada(nueva, nueva.isCompletada());
+            contadores.cambiarCompletada(nueva, nueva.isCompletada());
+            // Una tarea completada deja de avisar; una reabierta vuelve a hacerlo
+            planificador.programar(nueva);
+        }
+        if (nueva.isTieneFichero() != actual.isTieneFichero()) {
+            indices.cambiarFichero(id, nueva.isTieneFichero());
+            contadores.cambiarFichero(nueva.isTieneFichero());
+        }
+        registrarCambio();
+        registro.registrarPut(nueva);
+        return nueva;
+    }
+
+    private static void comprobarVersion(Task actual, Long versionEsperada) throws VersionConflictException {
+        if (versionEsperada != null && actual.getVersion() != versionEsperada) {
+            throw new VersionConflictException(actual, versionEsperada);
+        }
+    }
+
+    // Se llama (con el cerrojo tomado) tras cada modificación de las tareas
+    private static void registrarCambio() {
+        version++;
+        cacheRespuestas.invalidar(version);
+    }
+
+    public static synchronized long getVersion() {
+        return version;
+    }
+
+    public static ResponseCache getCacheRespuestas() {
+        return cacheRespuestas;
+    }
+
+    // METODOS DEL ARCHIVO
+
+    // Archiva las tareas completadas que vencieron antes de la edad configurada
+    // (en una réplica no: archiva lo que le indica el primario)
+    private static void archivarAntiguas() {
+        if (esReplica()) {
+            return;
+        }
+        long limite = System.currentTimeMillis() - EDAD_ARCHIVO_MS;
+        try {
+            int total = 0;
+            int archivadas;
+            do {
+                archivadas = archivarLote(limite);
+                total += archivadas;
+            } while (archivadas == LOTE_ARCHIVO);
+            archivo.vaciar();
+            if (total > 0) {
+                System.out.println("Archivadas " + total + " tareas completadas (" + archivo.size() + " en el archivo)");
+            }
+        } catch (IOException e) {
+            System.out.println("No se pudieron archivar las tareas: " + e.getMessage());
+        }
+    }
+
+    private static synchronized int archivarLote(long limite) throws IOException {
+        esperarCarga();
+        // Candidatas según el índice de completadas por vencimiento: todas se pueden archivar,
+        // así que cada lote recorre como mucho LOTE_ARCHIVO tareas
+        List<Task> candidatas = new ArrayList<>();
+        for (IntSet ids : indices.completadasConVencimientoHasta(limite)) {
+            for (int id : ids) {
+                candidatas.add(tasks.get(id));
+                if (candidatas.size() == LOTE_ARCHIVO) break;
+            }
+            if (candidatas.size() == LOTE_ARCHIVO) break;
+        }
+        for (Task task : candidatas) {
+            archivarTask(task);
+        }
+        return candidatas.size();
+    }
+
+    // Pasa una tarea al archivo y la quita de la memoria (el adjunto se conserva para descargarlo)
+    private static void archivarTask(Task task) throws IOException {
+        archivo.archivar(task);
+        Task actual = tasks.remove(task.getId());
+        if (actual != null) {
+            indiceBusqueda.quitar(actual);
+            indices.quitar(actual);
+            contadores.quitar(actual);
+            planificador.cancelar(actual.getId());
+        }
+        registrarCambio();
+        registro.registrarArchive(task);
+    }
+
+    public static synchronized boolean estaArchivada(int id) {
+        cargar(id);
+        return !tasks.containsKey(id) && archivo.contiene(id);
+    }
+
+    /**
+     * Tareas archivadas que cumplen el filtro, en el orden en que se archivaron.
+     * Solo se toma el cerrojo para fijar qué parte del archivo se lee: la lectura
+     * del disco se hace sin él.
+     */
+    public static List<Task> consultarArchivadas(Predicate<Task> filtro) throws IOException {
+        List<TaskArchive.Tramo> vista;
+        synchronized (Server.class) {
+            vista = archivo.vista();
+        }
+        List<Task> resultado = new ArrayList<>();
+        TaskArchive.recorrer(vista, task -> {
+            if (filtro.test(task)) {
+                resultado.add(task);
+            }
+        });
+        return resultado;
+    }
+
+    // METODOS DE LA INSTANTANEA DEL ESTADO
+
+    /**
+     * Recupera el estado guardado en la ejecución anterior.
+     * Los adjuntos y el contador de ids se recuperan antes de aceptar clientes;
+     * las tareas se cargan después en segundo plano (o antes, sin carga perezosa).
+     */
+    private static void restaurarEstado(long inicio) {
+        TaskSnapshot estado;
+        try {
+            estado = TaskSnapshot.abrir();
+        } catch (IOException e) {
+            // Se conserva para poder recuperarla a mano en vez de sobrescribirla con el estado vacío
+            System.out.println("No se pudo abrir la instantánea del estado (" + e.getMessage()
+                    + "), se aparta en " + TaskSnapshot.apartar());
+            return;
+        }
+        if (estado == null) {
+            return;
+        }
+        int adjuntos = FileManager.restaurar(estado.adjuntos());
+        synchronized (Server.class) {
+            taskIdContador = Math.max(taskIdContador, estado.getMaxId() + 1);
+            pendiente = estado;
+            cargadas = new BitSet(estado.size());
+        }
+        System.out.println("Instantánea del estado: " + estado.size() + " tareas y " + adjuntos + " adjuntos");
+
+        if (CARGA_PEREZOSA) {
+            Thread hiloCarga = new Thread(() -> cargarEstado(estado, inicio), "carga-estado");
+            hiloCarga.setDaemon(true);
+            hiloCarga.start();
+        } else {
+            cargarEstado(estado, inicio);
+        }
+    }
+
+    // Pasa a memoria las tareas de la instantánea, por lotes para no bloquear a los clientes mucho tiempo
+    private static void cargarEstado(TaskSnapshot estado, long inicio) {
+        try {
+            int vencidas = 0;
+            for (int desde = 0; desde < estado.size(); desde += LOTE_CARGA) {
+                vencidas += cargarLote(estado, desde, Math.min(estado.size(), desde + LOTE_CARGA));
+            }
+            System.out.println("Estado cargado: " + estado.size() + " tareas en " + milisDesde(inicio) + " ms"
+                    + " (" + vencidas + " ya vencidas, sin aviso)");
+        } catch (RuntimeException e) {
+            System.out.println("Error cargando la instantánea del estado (se aparta en "
+                    + TaskSnapshot.apartar() + "): " + e);
+        } finally {
+            synchronized (Server.class) {
+                pendiente = null;
+                cargadas = null;
+                Server.class.notifyAll();
+            }
+        }
+    }
+
+    // Devuelve cuántas de las tareas cargadas ya habían vencido
+    private static synchronized int cargarLote(TaskSnapshot estado, int desde, int hasta) {
+        int vencidas = 0;
+        for (int i = cargadas.nextClearBit(desde); i < hasta; i = cargadas.nextClearBit(i + 1)) {
+            if (insertarGuardada(estado, i)) {
+                vencidas++;
+            }
+        }
+        return vencidas;
+    }
+
+    // Si la tarea sigue pendiente de cargar, la carga ahora (con el cerrojo tomado)
+    private static void cargar(int id) {
+        if (pendiente != null) {
+            int i = pendiente.buscar(id);
+            if (i >= 0 && !cargadas.get(i)) {
+                insertarGuardada(pendiente, i);
+            }
+        }
+    }
+
+    // Devuelve true si la tarea ya había vencido (se anota sin aviso)
+    private static boolean insertarGuardada(TaskSnapshot estado, int i) {
+        cargadas.set(i);
+        Task task = estado.leer(i);
+        // Si el servidor se cayó tras archivarla y antes de guardar la instantánea, ya está en el archivo
+        return !archivo.contiene(task.getId()) && insertar(task, true);
+    }
+
+    /**
+     * Recorre las tareas de la instantánea que aún no se han cargado (con el cerrojo tomado),
+     * leyéndolas del archivo mapeado sin pasarlas a memoria. Las consultas las suman a las
+     * cargadas para responder durante la carga en vez de esperar a que termine.
+     */
+    private static void recorrerPendientes(Consumer<Task> accion) {
+        if (pendiente == null) {
+            return;
+        }
+        for (int i = cargadas.nextClearBit(0); i < pendiente.size(); i = cargadas.nextClearBit(i + 1)) {
+            if (!archivo.contiene(pendiente.idEn(i))) {
+                accion.accept(pendiente.leer(i));
+            }
+        }
+    }
+
+    // Las operaciones que necesitan todas las tareas en memoria esperan (soltando el cerrojo) a que estén cargadas
+    private static void esperarCarga() {
+        if (pendiente == null) {
+            return;
+        }
+        ServerEvents.EsperaCarga evento = new ServerEvents.EsperaCarga();
+        evento.begin();
+        boolean interrumpido = false;
+        while (pendiente != null) {
+            try {
+                Server.class.wait();
+            } catch (InterruptedException e) {
+                interrumpido = true;
+            }
+        }
+        if (interrumpido) {
+            Thread.currentThread().interrupt();
+        }
+        evento.end();
+        if (evento.shouldCommit()) {
+            evento.traceId = ServerEvents.trazaActual();
+            evento.commit();
+        }
+    }
+
+    /**
+     * Guarda la instantánea del estado si ha cambiado desde la última.
+     * Las tareas se copian con el cerrojo tomado y se escriben sin él.
+     */
+    private static void guardarEstado() {
+        synchronized (guardandoEstado) {
+            List<Task> tareas;
+            Map<Integer, FileManager.Adjunto> adjuntosTareas;
+            int maxId;
+            long versionCopiada;
+            synchronized (Server.class) {
+                if (version == versionGuardada) {
+                    return;
+                }
+                versionCopiada = version;
+                tareas = new ArrayList<>(tasks.values());
+                // Las que aún no se han cargado se copian de la instantánea anterior
+                recorrerPendientes(tareas::add);
+                adjuntosTareas = FileManager.getAdjuntos();
+                maxId = taskIdContador - 1;
+            }
+
+            long inicio = System.nanoTime();
+            tareas.sort(Comparator.comparingInt(Task::getId));
+            try {
+                TaskSnapshot.guardar(tareas, adjuntosTareas, maxId);
+                synchronized (Server.class) {
+                    versionGuardada = versionCopiada;
+                }
+                System.out.println("Instantánea del estado guardada: " + tareas.size() + " tareas en "
+                        + milisDesde(inicio) + " ms");
+            } catch (IOException e) {
+                System.out.println("No se pudo guardar la instantánea del estado: " + e.getMessage());
+            }
+        }
+    }
+
+    private static long milisDesde(long inicioNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicioNanos);
+    }
+
+    // METODOS DE REPLICACION
+
+    // Copia completa de las tareas y sus adjuntos, con el número del último cambio que incluye
+    public record Instantanea(long seq, Collection<Task> tareas, Map<Integer, FileManager.Adjunto> adjuntos,
+                              List<TaskArchive.Tramo> archivadas) {}
+
+    public static ReplicationLog getRegistro() {
+        return registro;
+    }
+
+    public static synchronized Instantanea instantaneaReplicacion() throws IOException {
+        esperarCarga();
+        Map<Integer, FileManager.Adjunto> adjuntosTareas = new HashMap<>();
+        for (Task task : tasks.values()) {
+            FileManager.Adjunto adjunto = FileManager.getAdjunto(task.getId());
+            if (adjunto != null) {
+                adjuntosTareas.put(task.getId(), adjunto);
+            }
+        }
+        return new Instantanea(registro.getSeq(), new ArrayList<>(tasks.values()), adjuntosTareas, archivo.vista());
+    }
+
+    /**
+     * Aplica en la réplica un cambio recibido del primario (los adjuntos los aplica el ReplicaFollower).
+     * Se ignoran los cambios de un seguidor que ya no es el actual (por ejemplo, tras promover la réplica).
+     */
+    static synchronized void aplicarReplicado(ReplicaFollower origen, ReplicationEntry cambio) throws IOException {
+        if (origen != seguidor) {
+            return;
+        }
+        esperarCarga();
+        try {
+            switch (cambio.tipo()) {
+                case PUT -> {
+                    Task task = cambio.task();
+                    if (tasks.containsKey(task.getId())) {
+                        actualizarTask(task.getId(), null, actual -> task);
+                    } else {
+                        añadirTask(task, true);
+                    }
+                    // Al promover la réplica, los ids nuevos empiezan tras el mayor recibido
+                    taskIdContador = Math.max(taskIdContador, task.getId() + 1);
+                }
+                case DELETE -> quitarTask(cambio.taskId(), null);
+                case ARCHIVE -> {
+                    archivarTask(cambio.task());
+                    taskIdContador = Math.max(taskIdContador, cambio.taskId() + 1);
+                }
+                case SNAPSHOT_START -> {
+                    // Empieza una copia completa: se descartan las tareas que tenía la réplica
+                    for (int id : new ArrayList<>(tasks.keySet())) {
+                        quitarTask(id, null);
+                    }
+                    archivo.borrarTodo();
+                }
+                default -> { }
+            }
+        } catch (VersionConflictException e) {
+            // Sin versión esperada no hay conflictos
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static boolean esReplica() {
+        return seguidor != null;
+    }
+
+    // Milisegundos desde la última vez que la réplica estaba al día con el primario
+    public static long getDesfaseReplica() {
+        ReplicaFollower actual = seguidor;
+        return actual == null ? 0 : actual.getDesfaseMs();
+    }
+
+    /**
+     * Convierte la réplica en primario: deja de seguir al primario anterior y
+     * empieza a aceptar cambios. Devuelve false si el servidor ya era primario.
+     */
+    public static synchronized boolean promover() {
+        if (seguidor == null) {
+            return false;
+        }
+        seguidor.detener();
+        seguidor = null;
+        System.out.println("Réplica promovida a primario (siguiente id: " + taskIdContador + ")");
+        return true;
+    }
+
+    // Anota como vencida una tarea si sigue existiendo y pendiente
+    private static synchronized void anotarVencida(int id) {
+        Task task = tasks.get(id);
+        if (task != null && !task.isCompletada()) {
+            contadores.marcarVencida(id);
+        }
+    }
+
+    // Contadores agregados de las tareas, sin recorrerlas
+    public static synchronized TaskStats getStats() {
+        TaskStats stats = contadores.instantanea();
+        if (pendiente != null) {
+            // Las que siguen en la instantánea se cuentan aparte (las vencidas, por su fecha)
+            TaskCounters resto = new TaskCounters();
+            long ahora = System.currentTimeMillis();
+            recorrerPendientes(task -> {
+                resto.añadir(task);
+                Long vencimiento = task.getVencimientoMillis();
+                if (!task.isCompletada() && vencimiento != null && vencimiento <= ahora) {
+                    resto.marcarVencida(task.getId());
+                }
+            });
+            stats = stats.sumar(resto.instantanea());
+        }
+        return stats;
+    }
+
+    // Tareas que cumplen una consulta, resuelta con los índices cuando es posible
+    public static synchronized List<Task> consultarTasks(TaskQuery consulta) {
+        List<Task> resultado = planner.ejecutar(consulta);
+        if (pendiente != null) {
+            // Las que siguen en la instantánea se comprueban una a una y se aplican de nuevo el orden y el límite
+            recorrerPendientes(task -> {
+                if (consulta.getWhere().test(task)) {
+                    resultado.add(task);
+                }
+            });
+            return consulta.seleccionar(resultado);
+        }
+        return resultado;
+    }
+
+    // Tareas cuya descripción contiene las palabras buscadas, de más a menos relevante
+    public static synchronized List<Task> buscarTasks(String consulta) {
+        List<Task> resultado = new ArrayList<>();
+        for (int id : indiceBusqueda.buscar(consulta)) {
+            resultado.add(tasks.get(id));
+        }
+        if (pendiente != null) {
+            // Las que siguen en la instantánea no están en el índice: se comprueban sus descripciones y van detrás
+            Set<String> palabras = SearchIndex.tokenizar(consulta);
+            recorrerPendientes(task -> {
+                if (SearchIndex.contiene(task.getDescripcion(), palabras)) {
+                    resultado.add(task);
+                }
+            });
+        }
+        return resultado;
     }
 
-    // Copia de seguridad del HashMap de tareas (persistencia)
+    // Copia de seguridad del HashMap de tareas (persistencia), con las que aún no se han cargado
     public static synchronized Map<Integer, Task> getAllTasks() {
-        return new HashMap<>(tasks); 
+        Map<Integer, Task> copia = new HashMap<>(tasks);
+        recorrerPendientes(task -> copia.put(task.getId(), task));
+        return copia;
     }
 }
@@ -0,0 +1,171 @@
+package org.example.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Clase ServerEvents
+ *
+ * Eventos de JDK Flight Recorder del servidor, para estudiar la latencia de las
+ * peticiones sin añadir trazas por consola. Todos llevan el traceId de la petición
+ * (el que envía el cliente en Message, o uno asignado por el servidor), así que se
+ * pueden cruzar con la latencia medida en el cliente.
+ *
+ * Sin una grabación activa, crear un evento y comprobar shouldCommit() apenas cuesta nada.
+ * Para grabar:
+ *   java -XX:StartFlightRecording=filename=servidor.jfr,settings=profile org.example.server.Server
+ *   jfr print --events 'org.example.*' servidor.jfr
+ *
+ * Las esperas por el cerrojo de las tareas (el monitor de la clase Server) las registra
+ * la propia JVM como jdk.JavaMonitorEnter, en el hilo de la petición y dentro de su
+ * intervalo (settings=profile las graba a partir de 10 ms).
+ */
+final class ServerEvents {
+
+    // traceId de la petición que atiende cada hilo, para los eventos que se emiten fuera del ClientHandler
+    private static final ThreadLocal<String> trazaActual = new ThreadLocal<>();
+
+    private ServerEvents() {}
+
+    static void empezarTraza(String traceId) {
+        trazaActual.set(traceId);
+    }
+
+    static void terminarTraza() {
+        trazaActual.remove();
+    }
+
+    static String trazaActual() {
+        return trazaActual.get();
+    }
+
+    @Name("org.example.Peticion")
+    @Label("Petición")
+    @Description("Atención de una petición de un cliente, desde que se recibe hasta que se responde")
+    @Category({"Gestor de tareas", "Servidor"})
+    static class Peticion extends Event {
+        @Label("Trace Id")
+        String traceId;
+
+        @Label("Tipo")
+        String tipo;
+
+        @Label("Tarea")
+        @Description("Id de la tarea de la petición (0 si no indica ninguna)")
+        int taskId;
+
+        @Label("Error")
+        @Description("Mensaje de error enviado al cliente, o null si la petición terminó bien")
+        String error;
+    }
+
+    @Name("org.example.Serializacion")
+    @Label("Serialización")
+    @Description("Serialización de un mensaje hacia un cliente; si no cabe en el buffer de salida, incluye la escritura en el socket")
+    @Category({"Gestor de tareas", "Servidor"})
+    static class Serializacion extends Event {
+        @Label("Trace Id")
+        String traceId;
+
+        @Label("Tipo")
+        String tipo;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Respuesta cacheada")
+        @Description("Los bytes ya estaban serializados en la caché de respuestas")
+        boolean cacheada;
+
+        // Graba el evento (ya terminado con end()) si hay una grabación activa
+        void terminar(String tipo, long bytes, boolean cacheada) {
+            if (shouldCommit()) {
+                this.traceId = trazaActual();
+                this.tipo = tipo;
+                this.bytes = bytes;
+                this.cacheada = cacheada;
+                commit();
+            }
+        }
+    }
+
+    @Name("org.example.Subida")
+    @Label("Subida de archivo")
+    @Category({"Gestor de tareas", "Servidor"})
+    static class Subida extends Event {
+        @Label("Trace Id")
+        String traceId;
+
+        @Label("Tarea")
+        int taskId;
+
+        @Label("Bytes")
+        @Description("Tamaño del archivo guardado")
+        @DataAmount
+        long bytes;
+
+        @Label("Bytes recibidos")
+        @Description("Bytes de los bloques recibidos (comprimidos si la subida va comprimida)")
+        @DataAmount
+        long bytesRecibidos;
+
+        @Label("Bloques")
+        int bloques;
+
+        @Label("Omitida")
+        @Description("El servidor ya tenía el contenido y no hizo falta transferirlo")
+        boolean omitida;
+
+        @Label("Completada")
+        boolean completada;
+
+        @Label("Error")
+        @Description("Motivo por el que no se completó (tarea inexistente o archivada, bloque o hash no válidos)")
+        String error;
+    }
+
+    @Name("org.example.Descarga")
+    @Label("Descarga de archivo")
+    @Category({"Gestor de tareas", "Servidor"})
+    static class Descarga extends Event {
+        @Label("Trace Id")
+        String traceId;
+
+        @Label("Tarea")
+        int taskId;
+
+        @Label("Desde")
+        @DataAmount
+        long desde;
+
+        @Label("Bytes")
+        @Description("Bytes del archivo enviados")
+        @DataAmount
+        long bytes;
+
+        @Label("Bytes enviados")
+        @Description("Bytes de los bloques enviados (comprimidos si la descarga va comprimida)")
+        @DataAmount
+        long bytesEnviados;
+
+        @Label("Bloques")
+        int bloques;
+
+        @Label("Desde la caché")
+        boolean desdeCache;
+    }
+
+    @Name("org.example.EsperaCarga")
+    @Label("Espera de la carga del estado")
+    @Description("Operación que recorre todas las tareas y espera a que termine la carga de la instantánea al arrancar")
+    @Category({"Gestor de tareas", "Servidor"})
+    static class EsperaCarga extends Event {
+        @Label("Trace Id")
+        String traceId;
+    }
+}
@@ -0,0 +1,349 @@
+package org.example.server;
+
+import org.example.common.Task;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Clase TaskArchive
+ *
+ * Almacén en disco de las tareas archivadas (completadas hace tiempo), fuera del
+ * mapa de tareas del Server, de forma que las tareas antiguas no crecen la memoria
+ * ni el tiempo de LIST y FILTER. Las tareas archivadas son de solo lectura.
+ *
+ * Las tareas se añaden al final de segmentos de solo escritura secuencial
+ * (segmento-N.dat), en el formato binario de TaskRecords.
+ *
+ * Cuando un segmento alcanza su tamaño máximo se cierra y se escribe su índice
+ * (segmento-N.idx): los pares (id, posición) ordenados por id, empaquetados en un long.
+ * En memoria solo se guardan esos índices (8 bytes por tarea), y al arrancar se
+ * cargan de los .idx sin leer los datos; el segmento abierto se recorre entero
+ * (y se recorta si la última escritura quedó a medias).
+ *
+ * Los segmentos nunca se modifican, así que se pueden leer sin el cerrojo del Server
+ * hasta la longitud que tenían al pedir la vista (ver vista y recorrer).
+ */
+public class TaskArchive {
+
+    // Directorio de los segmentos (dentro del directorio de datos del servidor)
+    private static final String DIRECTORIO = System.getProperty("tareas.directorio", "archivosTareas") + "/archivo/";
+
+    // Tamaño a partir del cual se cierra un segmento y se empieza otro
+    // (las posiciones del índice ocupan 32 bits, así que un segmento no puede pasar de 2 GB)
+    private static final long TAMAÑO_SEGMENTO = Math.min(Long.getLong("tareas.archivoSegmentoBytes", 64L * 1024 * 1024),
+            Integer.MAX_VALUE);
+
+    private static final String PREFIJO = "segmento-";
+    private static final String EXTENSION_DATOS = ".dat";
+    private static final String EXTENSION_INDICE = ".idx";
+
+    // Acción que se aplica a cada tarea al recorrer el archivo
+    public interface Visitante {
+        void visitar(Task task) throws IOException;
+    }
+
+    /**
+     * Parte de un segmento que se puede leer sin cerrojo: sus primeros "bytes" bytes.
+     */
+    public record Tramo(File datos, long bytes) {}
+
+    private static final class Segmento {
+        final int numero;
+        final File datos;
+        // (id << 32 | posición) de cada tarea del segmento
+        long[] entradas = new long[64];
+        int n;
+        boolean ordenado = true;
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        long bytes;
+
+        Segmento(int numero) {
+            this.numero = numero;
+            this.datos = new File(DIRECTORIO + PREFIJO + numero + EXTENSION_DATOS);
+        }
+
+        File indice() {
+            return new File(DIRECTORIO + PREFIJO + numero + EXTENSION_INDICE);
+        }
+
+        void añadir(int id, long posicion) {
+            if (n == entradas.length) {
+                entradas = Arrays.copyOf(entradas, n * 2);
+            }
+            long entrada = ((long) id << 32) | posicion;
+            if (n > 0 && entrada < entradas[n - 1]) {
+                ordenado = false;
+            }
+            entradas[n++] = entrada;
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+        }
+
+        // Posición de la tarea en el segmento, o -1 si no está
+        long buscar(int id) {
+            if (id < minId || id > maxId) {
+                return -1;
+            }
+            if (!ordenado) {
+                Arrays.sort(entradas, 0, n);
+                ordenado = true;
+            }
+            int i = Arrays.binarySearch(entradas, 0, n, (long) id << 32);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i < n && (int) (entradas[i] >>> 32) == id ? entradas[i] & 0xFFFFFFFFL : -1;
+        }
+    }
+
+    private final List<Segmento> segmentos = new ArrayList<>();
+
+    // Último segmento, en el que se escribe
+    private Segmento activo;
+    private DataOutputStream escritura;
+
+    private int tamaño;
+    private int maxId;
+
+    public TaskArchive() {
+        try {
+            cargar();
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudo abrir el archivo de tareas", e);
+        }
+    }
+
+    /* =========================
+       Escritura
+       ========================= */
+
+    /**
+     * Añade una tarea al archivo.
+     * Los datos quedan en el buffer de escritura hasta el siguiente vaciar().
+     */
+    public synchronized void archivar(Task task) throws IOException {
+        long posicion = activo.bytes;
+        activo.bytes += TaskRecords.escribir(escritura, task);
+        activo.añadir(task.getId(), posicion);
+        tamaño++;
+        maxId = Math.max(maxId, task.getId());
+
+        if (activo.bytes >= TAMAÑO_SEGMENTO) {
+            cerrarActivo();
+            abrirNuevo();
+        }
+    }
+
+    // Escribe en disco lo que queda en el buffer
+    public synchronized void vaciar() throws IOException {
+        escritura.flush();
+    }
+
+    /**
+     * Borra todas las tareas archivadas (al recibir una copia completa en una réplica).
+     */
+    public synchronized void borrarTodo() throws IOException {
+        escritura.close();
+        for (Segmento segmento : segmentos) {
+            segmento.datos.delete();
+            segmento.indice().delete();
+        }
+        segmentos.clear();
+        tamaño = 0;
+        maxId = 0;
+        abrirNuevo();
+    }
+
+    /* =========================
+       Lectura
+       ========================= */
+
+    public synchronized int size() {
+        return tamaño;
+    }
+
+    // Mayor id archivado (0 si no hay ninguno), para no repetir ids al reiniciar el servidor
+    public synchronized int getMaxId() {
+        return maxId;
+    }
+
+    public synchronized boolean contiene(int id) {
+        for (Segmento segmento : segmentos) {
+            if (segmento.buscar(id) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Tarea archivada con ese id, o null si no está archivada
+    public synchronized Task get(int id) throws IOException {
+        for (Segmento segmento : segmentos) {
+            long posicion = segmento.buscar(id);
+            if (posicion < 0) {
+                continue;
+            }
+            if (segmento == activo) {
+                escritura.flush();
+            }
+            try (FileChannel canal = FileChannel.open(segmento.datos.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer cabecera = ByteBuffer.allocate(TaskRecords.CABECERA);
+                leerCompleto(canal, cabecera, posicion);
+                int longitud = cabecera.getInt(TaskRecords.CABECERA - 4);
+                ByteBuffer registro = ByteBuffer.allocate(TaskRecords.CABECERA + Math.max(longitud, 0));
+                leerCompleto(canal, registro, posicion);
+                return TaskRecords.leer(registro, 0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Segmentos tal y como están ahora, para recorrerlos después sin el cerrojo.
+     * Las tareas que se archiven más tarde quedan fuera de la vista.
+     */
+    public synchronized List<Tramo> vista() throws IOException {
+        escritura.flush();
+        List<Tramo> tramos = new ArrayList<>(segmentos.size());
+        for (Segmento segmento : segmentos) {
+            tramos.add(new Tramo(segmento.datos, segmento.bytes));
+        }
+        return tramos;
+    }
+
+    /**
+     * Recorre las tareas de una vista en el orden en que se archivaron.
+     * Lee los segmentos de forma secuencial y no necesita ningún cerrojo.
+     */
+    public static void recorrer(List<Tramo> vista, Visitante visitante) throws IOException {
+        for (Tramo tramo : vista) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(tramo.datos()), 64 * 1024))) {
+                long leidos = 0;
+                while (leidos < tramo.bytes()) {
+                    TaskRecords.Registro registro = TaskRecords.leer(in);
+                    leidos += registro.longitud();
+                    visitante.visitar(registro.task());
+                }
+            }
+        }
+    }
+
+    private static void leerCompleto(FileChannel canal, ByteBuffer destino, long posicion) throws IOException {
+        while (destino.hasRemaining()) {
+            if (canal.read(destino, posicion + destino.position()) < 0) {
+                throw new EOFException("Registro incompleto en el archivo de tareas");
+            }
+        }
+    }
+
+    /* =========================
+       Segmentos
+       ========================= */
+
+    // Carga los índices de los segmentos cerrados y recorre el segmento abierto
+    private void cargar() throws IOException {
+        File directorio = new File(DIRECTORIO);
+        directorio.mkdirs();
+        String[] nombres = directorio.list((dir, nombre) -> nombre.startsWith(PREFIJO) && nombre.endsWith(EXTENSION_DATOS));
+        int[] numeros = new int[nombres == null ? 0 : nombres.length];
+        for (int i = 0; i < numeros.length; i++) {
+            numeros[i] = Integer.parseInt(nombres[i].substring(PREFIJO.length(), nombres[i].length() - EXTENSION_DATOS.length()));
+        }
+        Arrays.sort(numeros);
+
+        for (int numero : numeros) {
+            Segmento segmento = new Segmento(numero);
+            if (segmento.indice().exists()) {
+                cargarIndice(segmento);
+            } else {
+                recorrerSegmento(segmento);
+            }
+            segmentos.add(segmento);
+            tamaño += segmento.n;
+            if (segmento.n > 0) {
+                maxId = Math.max(maxId, segmento.maxId);
+            }
+        }
+
+        Segmento ultimo = segmentos.isEmpty() ? null : segmentos.get(segmentos.size() - 1);
+        if (ultimo == null || ultimo.indice().exists()) {
+            abrirNuevo();
+        } else {
+            activo = ultimo;
+            escritura = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(activo.datos, true), 64 * 1024));
+        }
+    }
+
+    private void cargarIndice(Segmento segmento) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmento.indice())))) {
+            int n = in.readInt();
+            segmento.entradas = new long[Math.max(n, 1)];
+            for (int i = 0; i < n; i++) {
+                long entrada = in.readLong();
+                segmento.añadir((int) (entrada >>> 32), entrada & 0xFFFFFFFFL);
+            }
+        }
+        segmento.bytes = segmento.datos.length();
+    }
+
+    // Reconstruye el índice de un segmento sin .idx; si la última tarea quedó a medias, se recorta
+    private void recorrerSegmento(Segmento segmento) throws IOException {
+        long posicion = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmento.datos), 64 * 1024))) {
+            while (true) {
+                TaskRecords.Registro registro;
+                try {
+                    registro = TaskRecords.leer(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                segmento.añadir(registro.task().getId(), posicion);
+                posicion += registro.longitud();
+            }
+        }
+        if (posicion < segmento.datos.length()) {
+            System.out.println("Recortando el final incompleto de " + segmento.datos.getName());
+            try (FileChannel canal = FileChannel.open(segmento.datos.toPath(), StandardOpenOption.WRITE)) {
+                canal.truncate(posicion);
+            }
+        }
+        segmento.bytes = posicion;
+    }
+
+    // Cierra el segmento activo y guarda su índice ordenado por id
+    private void cerrarActivo() throws IOException {
+        escritura.close();
+        if (!activo.ordenado) {
+            Arrays.sort(activo.entradas, 0, activo.n);
+            activo.ordenado = true;
+        }
+        File temporal = new File(activo.indice().getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporal)))) {
+            out.writeInt(activo.n);
+            for (int i = 0; i < activo.n; i++) {
+                out.writeLong(activo.entradas[i]);
+            }
+        }
+        // El índice aparece completo o no aparece (y entonces se reconstruye al arrancar)
+        if (!temporal.renameTo(activo.indice())) {
+            throw new IOException("No se pudo guardar el índice de " + activo.datos.getName());
+        }
+        activo.entradas = Arrays.copyOf(activo.entradas, Math.max(activo.n, 1));
+    }
+
+    private void abrirNuevo() throws IOException {
+        new File(DIRECTORIO).mkdirs();
+        int numero = segmentos.isEmpty() ? 1 : segmentos.get(segmentos.size() - 1).numero + 1;
+        activo = new Segmento(numero);
+        segmentos.add(activo);
+        escritura = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(activo.datos), 64 * 1024));
+    }
+}
@@ -0,0 +1,93 @@
+package org.example.server;
+
+import org.example.common.Task;
+import org.example.common.TaskStats;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Clase TaskCounters
+ *
+ * Contadores agregados de las tareas, actualizados en cada modificación
+ * para que las peticiones STATS se respondan en O(1) sin recorrer las tareas.
+ *
+ * Las tareas vencidas dependen del paso del tiempo y no de una modificación:
+ * el DueDateScheduler avisa cuando una tarea vence y se anota aquí, y deja de
+ * contar al completarse o borrarse.
+ *
+ * No es thread-safe: el Server lo usa dentro de sus métodos synchronized.
+ */
+public class TaskCounters {
+
+    private long total;
+    private long completadas;
+    private long conFichero;
+
+    // Tareas pendientes por prioridad
+    private final Map<Integer, Long> pendientesPorPrioridad = new TreeMap<>();
+
+    // Ids de las tareas pendientes que ya han vencido (IntSet, como los índices: tras
+    // cargar una instantánea antigua pueden ser cientos de miles)
+    private final IntSet vencidas = new IntSet();
+
+    public void añadir(Task task) {
+        total++;
+        if (task.isCompletada()) {
+            completadas++;
+        } else {
+            sumarPendiente(task.getPrioridad(), 1);
+        }
+        if (task.isTieneFichero()) {
+            conFichero++;
+        }
+    }
+
+    public void quitar(Task task) {
+        total--;
+        if (task.isCompletada()) {
+            completadas--;
+        } else {
+            sumarPendiente(task.getPrioridad(), -1);
+        }
+        if (task.isTieneFichero()) {
+            conFichero--;
+        }
+        vencidas.quitar(task.getId());
+    }
+
+    // Se llama cuando una tarea pasa a completada o vuelve a estar pendiente
+    public void cambiarCompletada(Task task, boolean completada) {
+        if (completada) {
+            completadas++;
+            sumarPendiente(task.getPrioridad(), -1);
+            vencidas.quitar(task.getId());
+        } else {
+            completadas--;
+            sumarPendiente(task.getPrioridad(), 1);
+        }
+    }
+
+    public void cambiarFichero(boolean tieneFichero) {
+        conFichero += tieneFichero ? 1 : -1;
+    }
+
+    // Se llama cuando vence una tarea pendiente
+    public void marcarVencida(int id) {
+        vencidas.añadir(id);
+    }
+
+    public TaskStats instantanea() {
+        return new TaskStats(total, total - completadas, completadas,
+                new TreeMap<>(pendientesPorPrioridad), vencidas.size(), conFichero);
+    }
+
+    private void sumarPendiente(int prioridad, long delta) {
+        long valor = pendientesPorPrioridad.getOrDefault(prioridad, 0L) + delta;
+        if (valor == 0) {
+            pendientesPorPrioridad.remove(prioridad);
+        } else {
+            pendientesPorPrioridad.put(prioridad, valor);
+        }
+    }
+}
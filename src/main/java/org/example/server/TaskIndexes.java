@@ -0,0 +1,142 @@
+package org.example.server;
+
+import org.example.common.Task;
+
+import java.util.*;
+
+/**
+ * Clase TaskIndexes
+ *
+ * Índices secundarios sobre las tareas del servidor, usados por el QueryPlanner
+ * para no recorrer todas las tareas en cada consulta:
+ *  - Prioridad -> ids
+ *  - Fecha de vencimiento -> ids (ordenado, para consultas por rango)
+ *  - Completada / no completada -> ids
+ *  - Con / sin archivo adjunto -> ids
+ *  - Fecha de vencimiento -> ids de las completadas (para el archivador)
+ *
+ * Los ids se guardan en IntSet (int sin Integer ni nodos de HashMap por id): con millones
+ * de tareas, los índices ocupaban más que las propias tareas.
+ *
+ * No es thread-safe: el Server lo actualiza y lo consulta dentro de sus métodos synchronized.
+ */
+public class TaskIndexes {
+
+    private final Map<Integer, IntSet> porPrioridad = new HashMap<>();
+    private final TreeMap<Long, IntSet> porVencimiento = new TreeMap<>();
+    private final Map<Boolean, IntSet> porCompletada = new HashMap<>();
+    private final Map<Boolean, IntSet> porFichero = new HashMap<>();
+    private final TreeMap<Long, IntSet> completadasPorVencimiento = new TreeMap<>();
+
+    public void añadir(Task task) {
+        int id = task.getId();
+        porPrioridad.computeIfAbsent(task.getPrioridad(), p -> new IntSet()).añadir(id);
+        if (task.getVencimientoMillis() != null) {
+            porVencimiento.computeIfAbsent(task.getVencimientoMillis(), f -> new IntSet()).añadir(id);
+        }
+        porCompletada.computeIfAbsent(task.isCompletada(), c -> new IntSet()).añadir(id);
+        porFichero.computeIfAbsent(task.isTieneFichero(), f -> new IntSet()).añadir(id);
+        if (task.isCompletada()) {
+            añadirCompletada(task);
+        }
+    }
+
+    public void quitar(Task task) {
+        int id = task.getId();
+        quitarDe(porPrioridad, task.getPrioridad(), id);
+        if (task.getVencimientoMillis() != null) {
+            quitarDe(porVencimiento, task.getVencimientoMillis(), id);
+        }
+        quitarDe(porCompletada, task.isCompletada(), id);
+        quitarDe(porFichero, task.isTieneFichero(), id);
+        if (task.isCompletada()) {
+            quitarCompletada(task);
+        }
+    }
+
+    // Se llama al cambiar el estado completada de una tarea (valor anterior -> nuevo)
+    public void cambiarCompletada(Task task, boolean nuevo) {
+        int id = task.getId();
+        quitarDe(porCompletada, !nuevo, id);
+        porCompletada.computeIfAbsent(nuevo, c -> new IntSet()).añadir(id);
+        if (nuevo) {
+            añadirCompletada(task);
+        } else {
+            quitarCompletada(task);
+        }
+    }
+
+    // Se llama al cambiar si una tarea tiene archivo adjunto
+    public void cambiarFichero(int id, boolean nuevo) {
+        quitarDe(porFichero, !nuevo, id);
+        porFichero.computeIfAbsent(nuevo, f -> new IntSet()).añadir(id);
+    }
+
+    /* =========================
+       Consultas
+       ========================= */
+
+    public Set<Integer> conPrioridad(int prioridad) {
+        IntSet ids = porPrioridad.get(prioridad);
+        return ids != null ? ids : Set.of();
+    }
+
+    public Set<Integer> conCompletada(boolean completada) {
+        IntSet ids = porCompletada.get(completada);
+        return ids != null ? ids : Set.of();
+    }
+
+    public Set<Integer> conFichero(boolean fichero) {
+        IntSet ids = porFichero.get(fichero);
+        return ids != null ? ids : Set.of();
+    }
+
+    /**
+     * Grupos de ids cuya fecha de vencimiento está en [desde, hasta].
+     * Los extremos null dejan el rango abierto.
+     */
+    public Collection<IntSet> conVencimientoEntre(Date desde, Date hasta) {
+        if (desde != null && hasta != null && desde.after(hasta)) {
+            return List.of();
+        }
+        NavigableMap<Long, IntSet> rango = porVencimiento;
+        if (desde != null) {
+            rango = rango.tailMap(desde.getTime(), true);
+        }
+        if (hasta != null) {
+            rango = rango.headMap(hasta.getTime(), true);
+        }
+        return rango.values();
+    }
+
+    /**
+     * Grupos de ids de las tareas completadas que vencen como muy tarde en la fecha indicada,
+     * de la que vence antes a la que vence después. El archivador solo recorre así
+     * tareas que puede archivar, sin volver a pasar por las pendientes ya vencidas.
+     */
+    public Collection<IntSet> completadasConVencimientoHasta(long hasta) {
+        return completadasPorVencimiento.headMap(hasta, true).values();
+    }
+
+    private void añadirCompletada(Task task) {
+        if (task.getVencimientoMillis() != null) {
+            completadasPorVencimiento.computeIfAbsent(task.getVencimientoMillis(), f -> new IntSet()).añadir(task.getId());
+        }
+    }
+
+    private void quitarCompletada(Task task) {
+        if (task.getVencimientoMillis() != null) {
+            quitarDe(completadasPorVencimiento, task.getVencimientoMillis(), task.getId());
+        }
+    }
+
+    private static <K> void quitarDe(Map<K, IntSet> indice, K clave, int id) {
+        IntSet ids = indice.get(clave);
+        if (ids != null) {
+            ids.quitar(id);
+            if (ids.isEmpty()) {
+                indice.remove(clave);
+            }
+        }
+    }
+}
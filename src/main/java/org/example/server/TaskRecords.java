@@ -0,0 +1,85 @@
+package org.example.server;
+
+import org.example.common.Task;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Formato binario de una tarea en los archivos del servidor (archivo de tareas e
+ * instantánea del estado), más compacto que la serialización de Java:
+ *   id (int), vencimiento (long, SIN_FECHA si no tiene), prioridad (int),
+ *   indicadores (byte), versión (long), longitud de la descripción (int, -1 si es null)
+ *   y los bytes UTF-8 de la descripción.
+ */
+final class TaskRecords {
+
+    // Tamaño de un registro sin la descripción
+    static final int CABECERA = 4 + 8 + 4 + 1 + 8 + 4;
+
+    // Valor del vencimiento para las tareas sin fecha
+    private static final long SIN_FECHA = Long.MIN_VALUE;
+
+    // Bits del byte de indicadores
+    private static final byte COMPLETADA = 1;
+    private static final byte FICHERO = 1 << 1;
+
+    // Tarea leída de un flujo y bytes que ocupa su registro
+    record Registro(Task task, int longitud) {}
+
+    private TaskRecords() {}
+
+    // Escribe la tarea y devuelve los bytes que ocupa su registro
+    static int escribir(DataOutput out, Task task) throws IOException {
+        byte[] descripcion = task.getDescripcion() == null ? null : task.getDescripcion().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(task.getId());
+        out.writeLong(task.getVencimientoMillis() == null ? SIN_FECHA : task.getVencimientoMillis());
+        out.writeInt(task.getPrioridad());
+        out.writeByte((task.isCompletada() ? COMPLETADA : 0) | (task.isTieneFichero() ? FICHERO : 0));
+        out.writeLong(task.getVersion());
+        out.writeInt(descripcion == null ? -1 : descripcion.length);
+        if (descripcion != null) {
+            out.write(descripcion);
+        }
+        return CABECERA + (descripcion == null ? 0 : descripcion.length);
+    }
+
+    static Registro leer(DataInput in) throws IOException {
+        int id = in.readInt();
+        long vence = in.readLong();
+        int prioridad = in.readInt();
+        byte indicadores = in.readByte();
+        long version = in.readLong();
+        int longitud = in.readInt();
+        String descripcion = null;
+        if (longitud >= 0) {
+            byte[] bytes = new byte[longitud];
+            in.readFully(bytes);
+            descripcion = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new Registro(crear(id, vence, prioridad, indicadores, version, descripcion), CABECERA + Math.max(longitud, 0));
+    }
+
+    // Lee el registro que empieza en la posición indicada, sin mover la posición del buffer
+    // (así varios hilos pueden leer del mismo buffer mapeado)
+    static Task leer(ByteBuffer buffer, int posicion) {
+        int longitud = buffer.getInt(posicion + CABECERA - 4);
+        String descripcion = null;
+        if (longitud >= 0) {
+            byte[] bytes = new byte[longitud];
+            buffer.get(posicion + CABECERA, bytes);
+            descripcion = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return crear(buffer.getInt(posicion), buffer.getLong(posicion + 4), buffer.getInt(posicion + 12),
+                buffer.get(posicion + 16), buffer.getLong(posicion + 17), descripcion);
+    }
+
+    private static Task crear(int id, long vence, int prioridad, byte indicadores, long version, String descripcion) {
+        return new Task(id, descripcion, vence == SIN_FECHA ? null : new Date(vence), prioridad,
+                (indicadores & COMPLETADA) != 0, (indicadores & FICHERO) != 0, version);
+    }
+}
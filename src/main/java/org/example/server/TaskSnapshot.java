@@ -0,0 +1,228 @@
+package org.example.server;
+
+import org.example.common.Task;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Clase TaskSnapshot
+ *
+ * Instantánea en disco de las tareas en memoria y de los adjuntos, para no perderlos
+ * al reiniciar el servidor (las tareas archivadas ya están en el TaskArchive).
+ *
+ * El archivo (estado.dat) tiene:
+ *   - una cabecera con el mayor id asignado, el número de tareas y de adjuntos y
+ *     la posición de cada sección,
+ *   - las tareas ordenadas por id, en el formato binario de TaskRecords,
+ *   - el índice: un long (id << 32 | posición) por tarea, ordenado por id,
+ *   - los adjuntos: id de la tarea, hash (32 bytes) y extensión.
+ *
+ * Al arrancar, el archivo se mapea en memoria sin leerlo: cada tarea se puede leer
+ * por separado buscando su id en el índice, así que el servidor puede atender
+ * peticiones mientras las tareas se cargan (ver Server.restaurarEstado).
+ *
+ * Se escribe entero en un archivo temporal que después sustituye al anterior,
+ * de modo que siempre queda una instantánea completa aunque el servidor se caiga.
+ */
+final class TaskSnapshot {
+
+    private static final File ARCHIVO = new File(System.getProperty("tareas.directorio", "archivosTareas"), "estado.dat");
+
+    private static final int MAGICO = 0x54415245;
+    private static final int FORMATO = 1;
+
+    // Mágico, formato, mayor id, tareas, adjuntos, posición del índice y de los adjuntos
+    private static final int CABECERA = 5 * 4 + 2 * 8;
+
+    private static final int BYTES_HASH = 32;
+
+    // Archivo mapeado; se lee con posiciones absolutas, así que lo pueden usar varios hilos
+    private final ByteBuffer datos;
+    private final int maxId;
+    private final int tamaño;
+    private final int numAdjuntos;
+    private final int posicionIndice;
+    private final int posicionAdjuntos;
+
+    private TaskSnapshot(ByteBuffer datos) throws IOException {
+        this.datos = datos;
+        if (datos.capacity() < CABECERA || datos.getInt(0) != MAGICO) {
+            throw new IOException(ARCHIVO + " no es una instantánea de tareas");
+        }
+        if (datos.getInt(4) != FORMATO) {
+            throw new IOException("Formato de instantánea desconocido: " + datos.getInt(4));
+        }
+        maxId = datos.getInt(8);
+        tamaño = datos.getInt(12);
+        numAdjuntos = datos.getInt(16);
+        long indice = datos.getLong(20);
+        long adjuntos = datos.getLong(28);
+        if (indice + 8L * tamaño != adjuntos || adjuntos > datos.capacity()) {
+            throw new IOException(ARCHIVO + " está incompleto");
+        }
+        posicionIndice = (int) indice;
+        posicionAdjuntos = (int) adjuntos;
+    }
+
+    /**
+     * Mapea la instantánea guardada (null si no hay ninguna).
+     */
+    static TaskSnapshot abrir() throws IOException {
+        if (!ARCHIVO.exists()) {
+            return null;
+        }
+        try (FileChannel canal = FileChannel.open(ARCHIVO.toPath(), StandardOpenOption.READ)) {
+            if (canal.size() > Integer.MAX_VALUE) {
+                throw new IOException(ARCHIVO + " ocupa más de 2 GB");
+            }
+            // El mapeo sigue siendo válido después de cerrar el canal
+            MappedByteBuffer mapeado = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+            return new TaskSnapshot(mapeado);
+        }
+    }
+
+    // Aparta una instantánea que no se puede leer, para no sobrescribirla con el estado vacío
+    static File apartar() {
+        File apartado = new File(ARCHIVO.getPath() + ".invalido");
+        apartado.delete();
+        return ARCHIVO.renameTo(apartado) ? apartado : null;
+    }
+
+    /* =========================
+       Lectura
+       ========================= */
+
+    int size() {
+        return tamaño;
+    }
+
+    // Mayor id asignado cuando se guardó (aunque esa tarea ya no exista)
+    int getMaxId() {
+        return maxId;
+    }
+
+    // Id de la tarea i-ésima (en orden de id)
+    int idEn(int i) {
+        return (int) (datos.getLong(posicionIndice + 8 * i) >>> 32);
+    }
+
+    // Lee la tarea i-ésima (en orden de id)
+    Task leer(int i) {
+        return TaskRecords.leer(datos, (int) datos.getLong(posicionIndice + 8 * i));
+    }
+
+    // Posición de la tarea en el índice, o -1 si no está en la instantánea
+    int buscar(int id) {
+        int bajo = 0;
+        int alto = tamaño - 1;
+        while (bajo <= alto) {
+            int medio = (bajo + alto) >>> 1;
+            int actual = idEn(medio);
+            if (actual < id) {
+                bajo = medio + 1;
+            } else if (actual > id) {
+                alto = medio - 1;
+            } else {
+                return medio;
+            }
+        }
+        return -1;
+    }
+
+    // Adjuntos guardados (id de tarea -> adjunto)
+    Map<Integer, FileManager.Adjunto> adjuntos() {
+        Map<Integer, FileManager.Adjunto> resultado = new HashMap<>();
+        int posicion = posicionAdjuntos;
+        byte[] hash = new byte[BYTES_HASH];
+        for (int i = 0; i < numAdjuntos; i++) {
+            int id = datos.getInt(posicion);
+            datos.get(posicion + 4, hash);
+            int longitud = datos.getInt(posicion + 4 + BYTES_HASH);
+            posicion += 8 + BYTES_HASH;
+            String extension = null;
+            if (longitud >= 0) {
+                byte[] bytes = new byte[longitud];
+                datos.get(posicion, bytes);
+                extension = new String(bytes, StandardCharsets.UTF_8);
+                posicion += longitud;
+            }
+            resultado.put(id, new FileManager.Adjunto(HexFormat.of().formatHex(hash), extension));
+        }
+        return resultado;
+    }
+
+    /* =========================
+       Escritura
+       ========================= */
+
+    /**
+     * Guarda una instantánea nueva en lugar de la anterior.
+     * @param tareas   tareas en memoria, ordenadas por id
+     * @param adjuntos adjunto de cada tarea que lo tiene
+     * @param maxId    mayor id asignado hasta ahora
+     */
+    static void guardar(List<Task> tareas, Map<Integer, FileManager.Adjunto> adjuntos, int maxId) throws IOException {
+        ARCHIVO.getParentFile().mkdirs();
+        File temporal = new File(ARCHIVO.getPath() + ".tmp");
+        try (FileChannel canal = FileChannel.open(temporal.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(canal), 64 * 1024));
+            out.write(new byte[CABECERA]);
+
+            // Las posiciones del índice ocupan 32 bits y el archivo se mapea entero: no puede pasar de 2 GB
+            long[] indice = new long[tareas.size()];
+            long posicion = CABECERA;
+            for (int i = 0; i < tareas.size(); i++) {
+                indice[i] = ((long) tareas.get(i).getId() << 32) | posicion;
+                posicion += TaskRecords.escribir(out, tareas.get(i));
+                if (posicion > Integer.MAX_VALUE) {
+                    throw new IOException("Las tareas en memoria ocupan más de 2 GB");
+                }
+            }
+            long posicionIndice = posicion;
+            for (long entrada : indice) {
+                out.writeLong(entrada);
+            }
+            long posicionAdjuntos = posicionIndice + 8L * indice.length;
+            for (Map.Entry<Integer, FileManager.Adjunto> adjunto : adjuntos.entrySet()) {
+                byte[] extension = adjunto.getValue().extension() == null ? null
+                        : adjunto.getValue().extension().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(adjunto.getKey());
+                out.write(HexFormat.of().parseHex(adjunto.getValue().hash()));
+                out.writeInt(extension == null ? -1 : extension.length);
+                if (extension != null) {
+                    out.write(extension);
+                }
+            }
+            out.flush();
+            if (canal.size() > Integer.MAX_VALUE) {
+                throw new IOException("La instantánea ocupa más de 2 GB");
+            }
+
+            // La cabecera se escribe al final: un archivo a medias no tiene el número mágico
+            ByteBuffer cabecera = ByteBuffer.allocate(CABECERA);
+            cabecera.putInt(MAGICO).putInt(FORMATO).putInt(maxId).putInt(tareas.size()).putInt(adjuntos.size())
+                    .putLong(posicionIndice).putLong(posicionAdjuntos).flip();
+            while (cabecera.hasRemaining()) {
+                canal.write(cabecera, CABECERA - cabecera.remaining());
+            }
+            canal.force(true);
+        } catch (IOException e) {
+            temporal.delete();
+            throw e;
+        }
+        if (!temporal.renameTo(ARCHIVO)) {
+            throw new IOException("No se pudo sustituir " + ARCHIVO);
+        }
+    }
+}
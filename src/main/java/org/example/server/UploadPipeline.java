@@ -0,0 +1,176 @@
+package org.example.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Clase UploadPipeline
+ *
+ * Separa en dos etapas la recepción de un archivo para que la red y el disco
+ * trabajen a la vez:
+ *  - El hilo del cliente lee los bloques del socket y los copia en un buffer libre
+ *  - Un hilo de escritura guarda en disco los buffers llenos y los devuelve como libres
+ *
+ * Los buffers se reutilizan durante toda la subida y su número es fijo: si el disco
+ * va más lento que la red, el hilo del cliente espera a que quede un buffer libre y
+ * deja de leer del socket, de modo que TCP frena al cliente sin acumular memoria.
+ *
+ * Los bloques pequeños que llegan por la red se agrupan en buffers grandes, así que
+ * el disco recibe menos escrituras y más grandes.
+ */
+public class UploadPipeline implements Closeable {
+
+    // Número de buffers de cada subida (los que pueden estar pendientes de escribir a la vez)
+    private static final int NUM_BUFFERS = Integer.getInteger("tareas.subidaBuffers", 4);
+
+    // Tamaño de cada buffer
+    private static final int TAMAÑO_BUFFER = Integer.getInteger("tareas.subidaBufferBytes", 64 * 1024);
+
+    // Hilos de la etapa de escritura (uno por subida en curso)
+    private static final ExecutorService escritores = Executors.newCachedThreadPool(tarea -> {
+        Thread hilo = new Thread(tarea, "escritura-subidas");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    private static final class Buffer {
+        final byte[] datos;
+        int longitud;
+
+        Buffer(int capacidad) {
+            datos = new byte[capacidad];
+        }
+    }
+
+    // Marca el final de la subida en la cola de buffers llenos
+    private static final Buffer FIN = new Buffer(0);
+
+    private final FileManager.Subida subida;
+    private final BlockingQueue<Buffer> libres = new ArrayBlockingQueue<>(NUM_BUFFERS);
+    private final BlockingQueue<Buffer> llenos = new ArrayBlockingQueue<>(NUM_BUFFERS + 1);
+    private final Future<?> escritor;
+
+    // Buffer que está rellenando el hilo del cliente
+    private Buffer actual;
+
+    // Primer error de escritura; a partir de él los buffers se descartan
+    private volatile IOException error;
+
+    private boolean cerrada;
+
+    public UploadPipeline(FileManager.Subida subida) {
+        this.subida = subida;
+        for (int i = 0; i < NUM_BUFFERS; i++) {
+            libres.add(new Buffer(TAMAÑO_BUFFER));
+        }
+        escritor = escritores.submit(this::escribirEnDisco);
+    }
+
+    /**
+     * Añade datos recibidos del socket.
+     * Se bloquea si todos los buffers están pendientes de escribir en disco.
+     */
+    public void añadir(byte[] datos, int longitud) throws IOException {
+        int posicion = 0;
+        while (posicion < longitud) {
+            if (actual == null) {
+                actual = siguienteLibre();
+            }
+            int n = Math.min(longitud - posicion, actual.datos.length - actual.longitud);
+            System.arraycopy(datos, posicion, actual.datos, actual.longitud, n);
+            actual.longitud += n;
+            posicion += n;
+
+            if (actual.longitud == actual.datos.length) {
+                llenos.add(actual);
+                actual = null;
+            }
+        }
+    }
+
+    /**
+     * Envía a disco los datos pendientes y espera a que estén escritos.
+     * Después de llamarlo ya se puede completar la Subida.
+     */
+    public void terminar() throws IOException {
+        if (actual != null && actual.longitud > 0) {
+            llenos.add(actual);
+        }
+        actual = null;
+        cerrar();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Si la subida se interrumpe, se espera al hilo de escritura antes de descartar el archivo
+    @Override
+    public void close() throws IOException {
+        if (!cerrada && error == null) {
+            error = new IOException("Subida interrumpida");
+        }
+        cerrar();
+    }
+
+    private Buffer siguienteLibre() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        try {
+            return libres.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Subida interrumpida");
+        }
+    }
+
+    private void cerrar() throws IOException {
+        if (cerrada) {
+            return;
+        }
+        cerrada = true;
+        // Siempre cabe: la cola tiene sitio para todos los buffers más el FIN
+        llenos.add(FIN);
+        try {
+            escritor.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Subida interrumpida");
+        } catch (ExecutionException e) {
+            throw new IOException("Error al guardar el archivo", e.getCause());
+        }
+    }
+
+    // Etapa de escritura: guarda los buffers llenos en el orden en que llegan
+    private void escribirEnDisco() {
+        while (true) {
+            Buffer buffer;
+            try {
+                buffer = llenos.take();
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("Subida interrumpida");
+                return;
+            }
+            if (buffer == FIN) {
+                return;
+            }
+
+            if (error == null) {
+                try {
+                    subida.escribir(buffer.datos, buffer.longitud);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            buffer.longitud = 0;
+            libres.add(buffer);
+        }
+    }
+}
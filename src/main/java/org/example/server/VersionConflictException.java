@@ -0,0 +1,28 @@
+package org.example.server;
+
+import org.example.common.Task;
+
+import java.io.Serial;
+
+/**
+ * Se lanza cuando un cliente intenta cambiar una tarea indicando una versión
+ * que ya no es la actual (otro cliente la ha cambiado antes).
+ * Lleva la tarea actual para que el cliente pueda decidir si repetir el cambio.
+ */
+public class VersionConflictException extends Exception {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final Task actual;
+
+    public VersionConflictException(Task actual, long versionEsperada) {
+        super("La tarea " + actual.getId() + " ha cambiado (versión esperada " + versionEsperada
+                + ", versión actual " + actual.getVersion() + ")");
+        this.actual = actual;
+    }
+
+    public Task getActual() {
+        return actual;
+    }
+}